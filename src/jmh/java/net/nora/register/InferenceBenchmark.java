@@ -0,0 +1,97 @@
+package net.nora.register;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.preprocessor.NormalizerStandardize;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MultiLayerNetwork#output} of the network with the default hidden layer size for batches of normalized cases,
+ * compared to the same network exported to a {@link CompactNetwork}, and the classification of feature codes by the
+ * compact network and its {@link QuantizedNetwork}. The weights are not trained, which does not change the amount of
+ * work per case.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InferenceBenchmark {
+
+    private static final long SEED = 42;
+    private static final int HIDDEN_LAYER_SIZE = 33;
+    private static final int FEATURE_COUNT = SyntheticRegister.HEADER.length - 2;
+
+    @Param({"1", "32", "256", "4096", "65536"})
+    int batchSize;
+
+    private MultiLayerNetwork model;
+    private INDArray features;
+    private CompactNetwork compactNetwork;
+    private float[] rawFeatures;
+    private float[] workspace;
+    private float[] probabilities;
+    private QuantizedNetwork quantizedNetwork;
+    private QuantizedNetwork.Workspace quantizedWorkspace;
+    private byte[] codes;
+    private float[] codeFeatures;
+    private int[] classes;
+
+    @Setup
+    public void setUp() {
+        model = new NeuronalNetwork(Main.VAS_VALUE_COUNT).buildModel(SEED, HIDDEN_LAYER_SIZE, 0.6);
+        Nd4j.getRandom().setSeed(SEED);
+        features = Nd4j.randn(batchSize, FEATURE_COUNT);
+
+        // an identity normalizer, so both networks score the same values
+        NormalizerStandardize normalizer = new NormalizerStandardize(Nd4j.zeros(1, FEATURE_COUNT), Nd4j.ones(1, FEATURE_COUNT));
+        compactNetwork = CompactNetworkExporter.export(model, normalizer);
+        rawFeatures = features.dup('c').data().asFloat();
+        workspace = compactNetwork.newWorkspace();
+        probabilities = new float[batchSize * compactNetwork.outputCount()];
+
+        // yes/no/unknown codes like the symptoms of the register
+        Random random = new Random(SEED);
+        codes = new byte[batchSize * FEATURE_COUNT];
+        codeFeatures = new float[codes.length];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = (byte) random.nextInt(3);
+            codeFeatures[i] = codes[i];
+        }
+        quantizedNetwork = compactNetwork.quantize();
+        quantizedWorkspace = quantizedNetwork.newWorkspace();
+        classes = new int[batchSize];
+    }
+
+    @Benchmark
+    public INDArray output() {
+        return model.output(features);
+    }
+
+    @Benchmark
+    public float[] compactOutput() {
+        for (int row = 0; row < batchSize; row++) {
+            compactNetwork.output(rawFeatures, row * FEATURE_COUNT, workspace, probabilities, row * compactNetwork.outputCount());
+        }
+        return probabilities;
+    }
+
+    @Benchmark
+    public int[] compactClassify() {
+        for (int row = 0; row < batchSize; row++) {
+            classes[row] = compactNetwork.classify(codeFeatures, row * FEATURE_COUNT, workspace);
+        }
+        return classes;
+    }
+
+    @Benchmark
+    public int[] quantizedClassify() {
+        quantizedNetwork.classify(codes, batchSize, classes, quantizedWorkspace);
+        return classes;
+    }
+}
@@ -0,0 +1,149 @@
+package net.nora.register;
+
+import org.nd4j.linalg.dataset.DataSet;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading, transforming, encoding and writing synthetic register files, as csv, as {@link RegisterColumnFile} and as {@link RegisterArrowFile}, of 10k, 1M and 10M rows. The files are generated
+ * once to target/benchmark-data. The 10M row files need a large heap, e.g. -Dbenchmark="-p rows=10000000 -jvmArgs -Xmx24g".
+ * On java 16 and higher the arrow benchmarks need -jvmArgsAppend --add-opens=java.base/java.nio=ALL-UNNAMED.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RegisterIngestBenchmark {
+
+    private static final long SEED = 42;
+
+    @Param({"10000", "1000000", "10000000"})
+    int rows;
+
+    private final RegisterCsvReader csvReader = new RegisterCsvReader();
+    private final RegisterCsvWriter csvWriter = new RegisterCsvWriter();
+    private final NetworkDataMapper mapper = new NetworkDataMapper();
+
+    private File registerFile;
+    private File columnFile;
+    private File transformedFile;
+    private File outputFile;
+    private File columnOutputFile;
+    private File arrowFile;
+    private File arrowOutputFile;
+    private RegisterCsvData csvData;
+    private RegisterCsvData transformedData;
+
+    /**
+     * input.read.threads of {@link RegisterIngestBenchmark#read}, 1 reads sequentially and 0 on all cores
+     */
+    @State(Scope.Benchmark)
+    public static class ReadThreads {
+
+        @Param({"1", "0"})
+        int readThreads;
+
+        @Setup
+        public void setUp() {
+            Main.INPUT_READ_THREADS = readThreads;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        Main.INPUT_READ_THREADS = 1;
+        Main.FILTER_DUPLICATES = false;
+        File directory = new File("target/benchmark-data");
+        registerFile = SyntheticRegister.generate(directory, rows, SEED);
+
+        csvData = csvReader.read(registerFile.getPath());
+        transformedData = mapper.transform(csvData);
+        transformedFile = new File(directory, "transformed_" + rows + "_" + SEED + ".csv");
+        csvWriter.write(transformedData, transformedFile.getPath());
+        outputFile = File.createTempFile("register_output", ".csv", directory);
+
+        columnFile = new File(directory, "register_" + rows + "_" + SEED + RegisterColumnFile.EXTENSION);
+        if (!columnFile.isFile()) {
+            write(csvData, columnFile);
+        }
+        columnOutputFile = File.createTempFile("register_output", RegisterColumnFile.EXTENSION, directory);
+
+        arrowFile = new File(directory, "register_" + rows + "_" + SEED + RegisterArrowFile.FILE_EXTENSION);
+        if (!arrowFile.isFile()) {
+            write(csvData, arrowFile);
+        }
+        arrowOutputFile = File.createTempFile("register_output", RegisterArrowFile.FILE_EXTENSION, directory);
+    }
+
+    @TearDown
+    public void tearDown() {
+        outputFile.delete();
+        columnOutputFile.delete();
+        arrowOutputFile.delete();
+    }
+
+    @Benchmark
+    public RegisterCsvData read(ReadThreads readThreads) {
+        return csvReader.read(registerFile.getPath());
+    }
+
+    @Benchmark
+    public RegisterCsvData readColumnar() {
+        return csvReader.read(columnFile.getPath());
+    }
+
+    @Benchmark
+    public RegisterCsvData readArrow() {
+        return csvReader.read(arrowFile.getPath());
+    }
+
+    @Benchmark
+    public RegisterCsvData transform() {
+        return mapper.transform(csvData);
+    }
+
+    @Benchmark
+    public EncodedRegisterData encode() {
+        return mapper.encode(csvData);
+    }
+
+    @Benchmark
+    public File write() {
+        csvWriter.write(transformedData, outputFile.getPath());
+        return outputFile;
+    }
+
+    @Benchmark
+    public File writeColumnar() throws IOException {
+        // the transformed data has no header, the register rows are written instead
+        write(csvData, columnOutputFile);
+        return columnOutputFile;
+    }
+
+    @Benchmark
+    public File writeArrow() throws IOException {
+        write(csvData, arrowOutputFile);
+        return arrowOutputFile;
+    }
+
+    @Benchmark
+    public DataSet readCSVDataset() throws IOException, InterruptedException {
+        // the transformed rows have no case id and the VAS value as last column
+        return NeuronalNetwork.readCSVDataset(transformedFile.getPath(), rows, SyntheticRegister.HEADER.length - 2,
+                Main.VAS_VALUE_COUNT);
+    }
+
+    private static void write(RegisterCsvData data, File file) throws IOException {
+        try (RowWriter writer = RowWriter.open(file)) {
+            writer.writeNext(data.getHeader());
+            for (String[] row : data.getCsvData()) {
+                writer.writeNext(row);
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package net.nora.register;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+/**
+ * Writes reproducible register files with random answers in the column layout of input/testdata.csv, so the
+ * benchmarks can run on register sizes that are not available as real data.
+ */
+class SyntheticRegister {
+
+    static final String[] HEADER = new String[]{"b_case_id",
+            "skin",
+            "q_111_angioedema",
+            "pharynx_larynx",
+            "abdomin",
+            "q_112_nausea",
+            "q_112_vomiting",
+            "q_112_diarrhoea",
+            "q_112_incontinence",
+            "q_113_dyspnea",
+            "q_113_chest_tightness_v5",
+            "q_113_cough_v5",
+            "q_113_wheezing_expiratory_distre",
+            "q_113_stridor_inspiratory",
+            "q_113_respiratory_arrest",
+            "q_114_hypotension_collapse_v5",
+            "q_114_dizziness",
+            "q_114_tachycardia",
+            "q_114_palpitations_cardiac_arryt",
+            "q_114_chest_pain_angina_v5",
+            "q_114_reductions_of_alertness",
+            "q_114_loss_of_consciousness",
+            "q_114_cardiac_arrest",
+            "kind",
+            "d_elicitor_gr5",
+            "VAS_MK"};
+
+    private static final String[] ELICITORS = new String[]{"other", "unkown", "drugs", "insects", "food"};
+
+    /**
+     * @return the file with the given number of random cases, it is only generated if it does not exist yet
+     */
+    static File generate(File directory, int rows, long seed) {
+        File file = new File(directory, "register_" + rows + "_" + seed + ".csv");
+        if (file.isFile()) {
+            return file;
+        }
+        directory.mkdirs();
+        File tempFile = new File(file.getPath() + ".tmp");
+        Random random = new Random(seed);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8))) {
+            writer.write(String.join(",", HEADER));
+            writer.write('\n');
+            StringBuilder line = new StringBuilder();
+            for (int row = 0; row < rows; row++) {
+                line.setLength(0);
+                line.append(row + 1);
+                for (int column = 1; column < HEADER.length - 2; column++) {
+                    line.append(',').append(answer(random, HEADER[column]));
+                }
+                line.append(',').append(ELICITORS[random.nextInt(ELICITORS.length)]);
+                line.append(',').append(1 + random.nextInt(10));
+                line.append('\n');
+                writer.append(line);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return file;
+    }
+
+    private static String answer(Random random, String column) {
+        // most symptoms are absent, only the questionnaire columns can be unknown
+        double value = random.nextDouble();
+        if (value < 0.25) {
+            return "yes";
+        }
+        if (value < 0.27 && column.startsWith("q_")) {
+            return "unknown";
+        }
+        return "no";
+    }
+}
@@ -0,0 +1,267 @@
+package net.nora.register;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Feed forward network with standardized inputs that is evaluated in plain java, without nd4j and its native libraries.
+ * <p>
+ * The weights of every dense layer are held as one flat float[] with one row of inputs per output neuron, so the forward
+ * pass only walks contiguous arrays. Scoring writes into a caller owned workspace and allocates nothing per row; a
+ * workspace must not be shared between threads. The network is written to and read from a compact binary file, see
+ * {@link CompactNetworkExporter} for the export of a trained {@code .nnet} model.
+ */
+class CompactNetwork {
+
+    private static final int MAGIC = 0x414e4e46;
+    private static final int FORMAT_VERSION = 1;
+
+    static final String TANH = "TANH";
+    static final String SIGMOID = "SIGMOID";
+    static final String RELU = "RELU";
+    static final String IDENTITY = "IDENTITY";
+    static final String SOFTMAX = "SOFTMAX";
+
+    private final float[] mean;
+    private final float[] std;
+    private final String[] activations;
+    private final int[] layerInputs;
+    private final int[] layerOutputs;
+    // weights[layer][output * layerInputs[layer] + input]
+    private final float[][] weights;
+    private final float[][] biases;
+    private final int maxLayerSize;
+
+    CompactNetwork(float[] mean, float[] std, String[] activations, int[] layerInputs, int[] layerOutputs,
+                   float[][] weights, float[][] biases) {
+        this.mean = mean;
+        this.std = std;
+        this.activations = activations;
+        this.layerInputs = layerInputs;
+        this.layerOutputs = layerOutputs;
+        this.weights = weights;
+        this.biases = biases;
+
+        int maxSize = mean.length;
+        for (int layer = 0; layer < activations.length; layer++) {
+            checkActivation(activations[layer]);
+            if (layerInputs[layer] != (layer == 0 ? mean.length : layerOutputs[layer - 1])) {
+                throw new IllegalArgumentException("Layer " + layer + " has " + layerInputs[layer] + " inputs");
+            }
+            maxSize = Math.max(maxSize, layerOutputs[layer]);
+        }
+        this.maxLayerSize = maxSize;
+    }
+
+    int inputCount() {
+        return mean.length;
+    }
+
+    int outputCount() {
+        return layerOutputs[layerOutputs.length - 1];
+    }
+
+    /**
+     * @return the int8 quantized network, whose first layer calculates the standardization of the raw feature codes
+     */
+    QuantizedNetwork quantize() {
+        int nIn = layerInputs[0];
+        int nOut = layerOutputs[0];
+        float[][] foldedWeights = weights.clone();
+        float[][] foldedBiases = biases.clone();
+        foldedWeights[0] = new float[weights[0].length];
+        foldedBiases[0] = new float[nOut];
+        // w * (x - mean) / std + b = (w / std) * x + b - sum(w * mean / std)
+        for (int o = 0; o < nOut; o++) {
+            float bias = biases[0][o];
+            for (int i = 0; i < nIn; i++) {
+                float weight = weights[0][o * nIn + i] / std[i];
+                foldedWeights[0][o * nIn + i] = weight;
+                bias -= weight * mean[i];
+            }
+            foldedBiases[0][o] = bias;
+        }
+        return QuantizedNetwork.quantize(activations, layerInputs, layerOutputs, foldedWeights, foldedBiases);
+    }
+
+    /**
+     * @return a workspace for {@link #output} and {@link #classify}, one per scoring thread
+     */
+    float[] newWorkspace() {
+        return new float[2 * maxLayerSize];
+    }
+
+    /**
+     * writes the output of the row features[featureOffset, featureOffset + inputCount()) of raw, not standardized,
+     * feature codes to output[outputOffset, outputOffset + outputCount())
+     */
+    void output(float[] features, int featureOffset, float[] workspace, float[] output, int outputOffset) {
+        int result = forward(features, featureOffset, workspace);
+        System.arraycopy(workspace, result, output, outputOffset, outputCount());
+    }
+
+    /**
+     * @return the index of the highest output of the row features[featureOffset, featureOffset + inputCount())
+     */
+    int classify(float[] features, int featureOffset, float[] workspace) {
+        int result = forward(features, featureOffset, workspace);
+        int maxIndex = 0;
+        for (int i = 1; i < outputCount(); i++) {
+            if (workspace[result + i] > workspace[result + maxIndex]) {
+                maxIndex = i;
+            }
+        }
+        return maxIndex;
+    }
+
+    /**
+     * @return the offset of the output layer's values in the workspace
+     */
+    private int forward(float[] features, int featureOffset, float[] workspace) {
+        int inputCount = mean.length;
+        for (int i = 0; i < inputCount; i++) {
+            workspace[i] = (features[featureOffset + i] - mean[i]) / std[i];
+        }
+
+        // the layers alternate between both halves of the workspace
+        int in = 0;
+        int out = maxLayerSize;
+        for (int layer = 0; layer < activations.length; layer++) {
+            int nIn = layerInputs[layer];
+            int nOut = layerOutputs[layer];
+            float[] w = weights[layer];
+            float[] b = biases[layer];
+            for (int o = 0; o < nOut; o++) {
+                float sum = b[o];
+                int row = o * nIn;
+                for (int i = 0; i < nIn; i++) {
+                    sum += w[row + i] * workspace[in + i];
+                }
+                workspace[out + o] = sum;
+            }
+            activate(activations[layer], workspace, out, nOut);
+            int swap = in;
+            in = out;
+            out = swap;
+        }
+        return in;
+    }
+
+    private static void activate(String activation, float[] values, int offset, int length) {
+        switch (activation) {
+            case TANH:
+                // Math.exp is an intrinsic, Math.tanh is several times slower
+                for (int i = offset; i < offset + length; i++) {
+                    values[i] = (float) (1 - 2 / (Math.exp(2 * values[i]) + 1));
+                }
+                break;
+            case SIGMOID:
+                for (int i = offset; i < offset + length; i++) {
+                    values[i] = (float) (1 / (1 + Math.exp(-values[i])));
+                }
+                break;
+            case RELU:
+                for (int i = offset; i < offset + length; i++) {
+                    values[i] = Math.max(0, values[i]);
+                }
+                break;
+            case SOFTMAX:
+                float max = values[offset];
+                for (int i = offset + 1; i < offset + length; i++) {
+                    max = Math.max(max, values[i]);
+                }
+                float sum = 0;
+                for (int i = offset; i < offset + length; i++) {
+                    values[i] = (float) Math.exp(values[i] - max);
+                    sum += values[i];
+                }
+                for (int i = offset; i < offset + length; i++) {
+                    values[i] /= sum;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void checkActivation(String activation) {
+        switch (activation) {
+            case TANH:
+            case SIGMOID:
+            case RELU:
+            case IDENTITY:
+            case SOFTMAX:
+                return;
+            default:
+                throw new IllegalArgumentException("Unsupported activation " + activation);
+        }
+    }
+
+    void write(File file) {
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(mean.length);
+            writeFloats(output, mean);
+            writeFloats(output, std);
+            output.writeInt(activations.length);
+            for (int layer = 0; layer < activations.length; layer++) {
+                output.writeUTF(activations[layer]);
+                output.writeInt(layerInputs[layer]);
+                output.writeInt(layerOutputs[layer]);
+                writeFloats(output, weights[layer]);
+                writeFloats(output, biases[layer]);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static CompactNetwork load(File file) {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) {
+                throw new IllegalArgumentException(file + " is no compact network file");
+            }
+            int inputCount = input.readInt();
+            float[] mean = readFloats(input, inputCount);
+            float[] std = readFloats(input, inputCount);
+            int layerCount = input.readInt();
+            String[] activations = new String[layerCount];
+            int[] layerInputs = new int[layerCount];
+            int[] layerOutputs = new int[layerCount];
+            float[][] weights = new float[layerCount][];
+            float[][] biases = new float[layerCount][];
+            for (int layer = 0; layer < layerCount; layer++) {
+                activations[layer] = input.readUTF();
+                layerInputs[layer] = input.readInt();
+                layerOutputs[layer] = input.readInt();
+                weights[layer] = readFloats(input, layerInputs[layer] * layerOutputs[layer]);
+                biases[layer] = readFloats(input, layerOutputs[layer]);
+            }
+            return new CompactNetwork(mean, std, activations, layerInputs, layerOutputs, weights, biases);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeFloats(DataOutputStream output, float[] values) throws IOException {
+        for (float value : values) {
+            output.writeFloat(value);
+        }
+    }
+
+    private static float[] readFloats(DataInputStream input, int length) throws IOException {
+        float[] values = new float[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = input.readFloat();
+        }
+        return values;
+    }
+}
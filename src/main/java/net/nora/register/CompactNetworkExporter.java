@@ -0,0 +1,128 @@
+package net.nora.register;
+
+import org.deeplearning4j.nn.conf.layers.BaseLayer;
+import org.deeplearning4j.nn.conf.layers.DenseLayer;
+import org.deeplearning4j.nn.conf.layers.Layer;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.activations.IActivation;
+import org.nd4j.linalg.activations.impl.ActivationIdentity;
+import org.nd4j.linalg.activations.impl.ActivationReLU;
+import org.nd4j.linalg.activations.impl.ActivationSigmoid;
+import org.nd4j.linalg.activations.impl.ActivationSoftmax;
+import org.nd4j.linalg.activations.impl.ActivationTanH;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.nd4j.linalg.dataset.api.preprocessor.NormalizerStandardize;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Copies the weights of a trained {@link MultiLayerNetwork} of dense layers and the statistics of its
+ * {@link NormalizerStandardize} into a {@link CompactNetwork}.
+ */
+class CompactNetworkExporter {
+
+    static CompactNetwork export(MultiLayerNetwork model, DataNormalization normalizer) {
+        if (!(normalizer instanceof NormalizerStandardize)) {
+            throw new IllegalArgumentException("Only a NormalizerStandardize can be exported, not " + normalizer);
+        }
+        NormalizerStandardize standardize = (NormalizerStandardize) normalizer;
+        float[] mean = standardize.getMean().dup().data().asFloat();
+        // the statistics already hold the minimal standard deviation of constant columns
+        float[] std = standardize.getStd().dup().data().asFloat();
+
+        int layerCount = model.getnLayers();
+        String[] activations = new String[layerCount];
+        int[] layerInputs = new int[layerCount];
+        int[] layerOutputs = new int[layerCount];
+        float[][] weights = new float[layerCount][];
+        float[][] biases = new float[layerCount][];
+        for (int layer = 0; layer < layerCount; layer++) {
+            Layer layerConf = model.getLayerWiseConfigurations().getConf(layer).getLayer();
+            if (!(layerConf instanceof DenseLayer) && !(layerConf instanceof OutputLayer)) {
+                throw new IllegalArgumentException("Layer " + layer + " is no dense layer: " + layerConf);
+            }
+            activations[layer] = activationName(((BaseLayer) layerConf).getActivationFn());
+
+            // W is [nIn, nOut], the compact network holds one row of inputs per output
+            INDArray w = model.getLayer(layer).getParam("W");
+            int nIn = w.rows();
+            int nOut = w.columns();
+            float[] transposed = w.transpose().dup('c').data().asFloat();
+            layerInputs[layer] = nIn;
+            layerOutputs[layer] = nOut;
+            weights[layer] = transposed;
+            biases[layer] = model.getLayer(layer).getParam("b").dup().data().asFloat();
+        }
+        return new CompactNetwork(mean, std, activations, layerInputs, layerOutputs, weights, biases);
+    }
+
+    /**
+     * @return the largest difference of an output of the compact network and the model for the raw feature rows
+     */
+    static double maxDifference(CompactNetwork network, MultiLayerNetwork model, DataNormalization normalizer, INDArray rawFeatures) {
+        INDArray normalized = rawFeatures.dup();
+        normalizer.transform(normalized);
+        INDArray expected = model.output(normalized);
+
+        int rows = rawFeatures.rows();
+        float[] features = rawFeatures.dup('c').data().asFloat();
+        float[] workspace = network.newWorkspace();
+        float[] output = new float[network.outputCount()];
+        double maxDifference = 0;
+        for (int row = 0; row < rows; row++) {
+            network.output(features, row * network.inputCount(), workspace, output, 0);
+            for (int i = 0; i < output.length; i++) {
+                maxDifference = Math.max(maxDifference, Math.abs(output[i] - expected.getFloat(row, i)));
+            }
+        }
+        return maxDifference;
+    }
+
+    /**
+     * @return the share of the raw feature rows that the quantized network classifies like the model
+     */
+    static double quantizedAgreement(QuantizedNetwork network, MultiLayerNetwork model, DataNormalization normalizer, INDArray rawFeatures) {
+        int rows = rawFeatures.rows();
+        if (rows == 0) {
+            return 1;
+        }
+        INDArray normalized = rawFeatures.dup();
+        normalizer.transform(normalized);
+        INDArray expected = Nd4j.argMax(model.output(normalized), 1);
+
+        float[] features = rawFeatures.dup('c').data().asFloat();
+        byte[] codes = new byte[features.length];
+        for (int i = 0; i < features.length; i++) {
+            codes[i] = (byte) features[i];
+        }
+        int[] classes = new int[rows];
+        network.classify(codes, rows, classes, network.newWorkspace());
+        int agreeing = 0;
+        for (int row = 0; row < rows; row++) {
+            if (classes[row] == expected.getInt(row)) {
+                agreeing++;
+            }
+        }
+        return (double) agreeing / rows;
+    }
+
+    private static String activationName(IActivation activation) {
+        if (activation instanceof ActivationTanH) {
+            return CompactNetwork.TANH;
+        }
+        if (activation instanceof ActivationSigmoid) {
+            return CompactNetwork.SIGMOID;
+        }
+        if (activation instanceof ActivationReLU) {
+            return CompactNetwork.RELU;
+        }
+        if (activation instanceof ActivationIdentity) {
+            return CompactNetwork.IDENTITY;
+        }
+        if (activation instanceof ActivationSoftmax) {
+            return CompactNetwork.SOFTMAX;
+        }
+        throw new IllegalArgumentException("Unsupported activation " + activation);
+    }
+}
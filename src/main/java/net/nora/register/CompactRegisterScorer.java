@@ -0,0 +1,91 @@
+package net.nora.register;
+
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Scores register chunks with a {@link CompactNetwork}, or its {@link QuantizedNetwork}, and appends them to the output
+ * csv or columnar file in the format of {@link StreamingRegisterScorer}. Neither nd4j nor its native libraries are loaded.
+ */
+class CompactRegisterScorer implements Closeable {
+
+    private final CompactNetwork network;
+    private final QuantizedNetwork quantizedNetwork;
+    private final RowWriter writer;
+    private final float[] workspace;
+    private final QuantizedNetwork.Workspace quantizedWorkspace;
+    private String[] header;
+    private FeatureEncoder encoder;
+    private float[] features;
+    private byte[] codes = new byte[0];
+    private int[] vasCodes = new int[0];
+    private int scoredRows;
+
+    /**
+     * @param quantized true to classify the rows with the int8 quantized network
+     */
+    CompactRegisterScorer(CompactNetwork network, boolean quantized, File outputFile) throws IOException {
+        this.network = network;
+        this.workspace = network.newWorkspace();
+        this.quantizedNetwork = quantized ? network.quantize() : null;
+        this.quantizedWorkspace = quantized ? quantizedNetwork.newWorkspace() : null;
+        this.writer = RowWriter.open(outputFile);
+        writer.writeNext(NeuronalNetwork.OUTPUT_CSV_HEADER);
+    }
+
+    void score(RegisterCsvData registerData) {
+        if (registerData.getHeader() != header) {
+            header = registerData.getHeader();
+            encoder = FeatureEncoder.forHeader(header);
+            if (encoder.featureCount() != network.inputCount()) {
+                throw new IllegalArgumentException("The network has " + network.inputCount() + " inputs, the register "
+                        + encoder.featureCount());
+            }
+            features = new float[encoder.featureCount()];
+        }
+
+        List<String[]> csvLines = registerData.getCsvData();
+        int rows = csvLines.size();
+        int featureCount = features.length;
+        if (codes.length < rows * featureCount) {
+            codes = new byte[rows * featureCount];
+            vasCodes = new int[rows];
+        }
+        for (int row = 0; row < rows; row++) {
+            encoder.encode(csvLines.get(row), features, 0);
+            for (int i = 0; i < featureCount; i++) {
+                codes[row * featureCount + i] = (byte) features[i];
+            }
+            if (quantizedNetwork == null) {
+                vasCodes[row] = network.classify(features, 0, workspace);
+            }
+        }
+        if (quantizedNetwork != null) {
+            quantizedNetwork.classify(codes, rows, vasCodes, quantizedWorkspace);
+        }
+
+        String[] line = new String[NeuronalNetwork.OUTPUT_CSV_HEADER.length];
+        for (int row = 0; row < rows; row++) {
+            line[0] = csvLines.get(row)[0];
+            for (int i = 0; i < featureCount; i++) {
+                line[i + 1] = encoder.decode(i, codes[row * featureCount + i]);
+            }
+            line[line.length - 2] = "null";
+            line[line.length - 1] = FeatureEncoder.decodeVas(vasCodes[row]);
+            writer.writeNext(line);
+        }
+        scoredRows += rows;
+    }
+
+    int getScoredRows() {
+        return scoredRows;
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,274 @@
+package net.nora.register;
+
+import com.opencsv.CSVWriter;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.evaluation.classification.ConfusionMatrix;
+import org.nd4j.evaluation.classification.Evaluation;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Repeated k-fold cross validation of the configured ann on the encoded training data. Every repetition deals the rows
+ * into k folds, each fold is verified by a model trained on the other folds. The folds are index views on the one shared
+ * encoded data set and are trained concurrently on a bounded thread pool. With early stopping, the models are selected on
+ * the score of stopping rows that are held out of the training rows of the fold, so the verified fold is not used to
+ * select the model that is verified on it.
+ * <p>
+ * The metrics of every fold are written to output/cross_validation_folds.csv, the precision, recall and f1 of every VAS
+ * value of all folds to output/cross_validation_classes.csv and their confusion matrix to
+ * output/cross_validation_confusion.csv.
+ */
+class CrossValidation {
+
+    private static Logger log = LoggerFactory.getLogger(CrossValidation.class);
+
+    private static final String[] FOLDS_HEADER = new String[]{"repetition",
+            "fold",
+            "training_rows",
+            "verification_rows",
+            "accuracy",
+            "precision",
+            "recall",
+            "f1",
+            "verification_score",
+            "training_seconds"};
+
+    private final NeuronalNetwork network;
+    private final EncodedRegisterData encodedData;
+    private final int folds;
+    private final int repetitions;
+    private final long shuffleSeed;
+
+    /**
+     * @param shuffleSeed the seed of the row order of the repetitions after the first one, the first repetition uses the
+     *                    row order of the encoded data
+     */
+    CrossValidation(NeuronalNetwork network, EncodedRegisterData encodedData, int folds, int repetitions, long shuffleSeed) {
+        if (folds < 2 || folds > encodedData.size()) {
+            throw new IllegalArgumentException("Cross validation needs 2 to " + encodedData.size() + " folds, not " + folds);
+        }
+        if (repetitions < 1) {
+            throw new IllegalArgumentException("Cross validation needs at least one repetition, not " + repetitions);
+        }
+        if (Main.EARLY_STOPPING_PATIENCE > 0 && encodedData.size() < 2 * folds) {
+            throw new IllegalArgumentException("Cross validation with early stopping needs at least 2 rows per fold, "
+                    + encodedData.size() + " rows are too few for " + folds + " folds");
+        }
+        this.network = network;
+        this.encodedData = encodedData;
+        this.folds = folds;
+        this.repetitions = repetitions;
+        this.shuffleSeed = shuffleSeed;
+    }
+
+    void run(String dataDirectoryPath, long annSeed, int hiddenLayerSize, int epochs, double learningRate, int threads) {
+        log.info("Cross validating " + repetitions + " x " + folds + " folds of " + encodedData.size() + " rows on "
+                + threads + " threads...");
+        if (Main.EARLY_STOPPING_PATIENCE > 0) {
+            log.info("Early stopping selects the model of every fold on 1/" + folds + " of its training rows");
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Result> results = new ArrayList<>();
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (int repetition = 0; repetition < repetitions; repetition++) {
+                int[] rowOrder = rowOrder(repetition);
+                for (int fold = 0; fold < folds; fold++) {
+                    int verifiedRepetition = repetition;
+                    int verifiedFold = fold;
+                    futures.add(executor.submit(() -> train(rowOrder, verifiedRepetition, verifiedFold,
+                            annSeed, hiddenLayerSize, epochs, learningRate)));
+                }
+            }
+            for (Future<Result> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Training of a cross validation fold failed", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+
+        Evaluation total = new Evaluation(Main.VAS_VALUE_COUNT);
+        for (Result result : results) {
+            total.merge(result.eval);
+        }
+        log.info("Cross validation of all folds:" + total.stats());
+        writeFolds(results, dataDirectoryPath + "/output/cross_validation_folds.csv");
+        writeClasses(total, dataDirectoryPath + "/output/cross_validation_classes.csv");
+        writeConfusionMatrix(total, dataDirectoryPath + "/output/cross_validation_confusion.csv");
+    }
+
+    private Result train(int[] rowOrder, int repetition, int fold, long annSeed, int hiddenLayerSize, int epochs, double learningRate) {
+        long start = System.currentTimeMillis();
+        int foldStart = foldStart(fold);
+        int foldEnd = foldStart(fold + 1);
+        // the rows of the other folds followed by the rows of this fold
+        int[] foldOrder = new int[rowOrder.length];
+        int trainingRows = rowOrder.length - (foldEnd - foldStart);
+        System.arraycopy(rowOrder, 0, foldOrder, 0, foldStart);
+        System.arraycopy(rowOrder, foldEnd, foldOrder, foldStart, rowOrder.length - foldEnd);
+        System.arraycopy(rowOrder, foldStart, foldOrder, trainingRows, foldEnd - foldStart);
+
+        // with early stopping the last training rows are held out to select the model, the verified fold stays unseen
+        int stoppingRows = Main.EARLY_STOPPING_PATIENCE > 0 ? trainingRows / folds : 0;
+        trainingRows -= stoppingRows;
+
+        DataSet trainingData = encodedData.toDataSet(foldOrder, 0, trainingRows, Main.VAS_VALUE_COUNT);
+        DataSet verificationData = encodedData.toDataSet(foldOrder, trainingRows + stoppingRows, foldOrder.length, Main.VAS_VALUE_COUNT);
+        DataNormalization normalizer = NeuronalNetwork.fitNormalizer(trainingData);
+        if (Main.COLLAPSE_DUPLICATES) {
+            trainingData = NeuronalNetwork.collapseDuplicates(trainingData, encodedData.getHeader());
+        }
+        normalizer.transform(trainingData);
+        normalizer.transform(verificationData);
+        DataSet stoppingData = verificationData;
+        if (stoppingRows > 0) {
+            stoppingData = encodedData.toDataSet(foldOrder, trainingRows, trainingRows + stoppingRows, Main.VAS_VALUE_COUNT);
+            normalizer.transform(stoppingData);
+        }
+
+        MultiLayerNetwork model = network.buildModel(annSeed, hiddenLayerSize, learningRate);
+        model = network.train(model, trainingData, stoppingData, epochs, learningRate, annSeed);
+
+        Evaluation eval = new Evaluation(Main.VAS_VALUE_COUNT);
+        eval.eval(verificationData.getLabels(), model.output(verificationData.getFeatures()));
+        Result result = new Result(repetition, fold, trainingRows, foldEnd - foldStart, eval,
+                model.score(verificationData), (System.currentTimeMillis() - start) / 1000.0);
+        log.info("Cross validated repetition " + (repetition + 1) + " fold " + (fold + 1) + ": accuracy "
+                + eval.accuracy() + ", f1 " + eval.f1());
+        return result;
+    }
+
+    /**
+     * @return the first row of the fold in the row order, folds differ in size by at most one row
+     */
+    private int foldStart(int fold) {
+        return (int) ((long) fold * encodedData.size() / folds);
+    }
+
+    private int[] rowOrder(int repetition) {
+        int[] rowOrder = new int[encodedData.size()];
+        for (int i = 0; i < rowOrder.length; i++) {
+            rowOrder[i] = i;
+        }
+        if (repetition > 0) {
+            Random random = new Random(shuffleSeed + repetition);
+            for (int i = rowOrder.length - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int row = rowOrder[i];
+                rowOrder[i] = rowOrder[j];
+                rowOrder[j] = row;
+            }
+        }
+        return rowOrder;
+    }
+
+    private void writeFolds(List<Result> results, String fileName) {
+        try (Writer fileWriter = new OutputStreamWriter(new FileOutputStream(new File(fileName)), StandardCharsets.UTF_8)) {
+            CSVWriter writer = new CSVWriter(fileWriter, ',', CSVWriter.NO_QUOTE_CHARACTER);
+            writer.writeNext(FOLDS_HEADER);
+            for (Result result : results) {
+                writer.writeNext(new String[]{
+                        String.valueOf(result.repetition + 1),
+                        String.valueOf(result.fold + 1),
+                        String.valueOf(result.trainingRows),
+                        String.valueOf(result.verificationRows),
+                        String.valueOf(result.eval.accuracy()),
+                        String.valueOf(result.eval.precision()),
+                        String.valueOf(result.eval.recall()),
+                        String.valueOf(result.eval.f1()),
+                        String.valueOf(result.verificationScore),
+                        String.valueOf(result.trainingSeconds)});
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        log.info("Wrote cross validation folds to: " + fileName);
+    }
+
+    private void writeClasses(Evaluation total, String fileName) {
+        try (Writer fileWriter = new OutputStreamWriter(new FileOutputStream(new File(fileName)), StandardCharsets.UTF_8)) {
+            CSVWriter writer = new CSVWriter(fileWriter, ',', CSVWriter.NO_QUOTE_CHARACTER);
+            writer.writeNext(new String[]{"vas", "rows", "precision", "recall", "f1"});
+            for (int vas = 0; vas < Main.VAS_VALUE_COUNT; vas++) {
+                writer.writeNext(new String[]{
+                        FeatureEncoder.decodeVas(vas),
+                        String.valueOf(total.classCount(vas)),
+                        String.valueOf(total.precision(vas)),
+                        String.valueOf(total.recall(vas)),
+                        String.valueOf(total.f1(vas))});
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        log.info("Wrote cross validation classes to: " + fileName);
+    }
+
+    /**
+     * writes one line per actual VAS value with the number of rows per calculated VAS value
+     */
+    private void writeConfusionMatrix(Evaluation total, String fileName) {
+        ConfusionMatrix<Integer> confusion = total.getConfusionMatrix();
+        try (Writer fileWriter = new OutputStreamWriter(new FileOutputStream(new File(fileName)), StandardCharsets.UTF_8)) {
+            CSVWriter writer = new CSVWriter(fileWriter, ',', CSVWriter.NO_QUOTE_CHARACTER);
+            String[] line = new String[Main.VAS_VALUE_COUNT + 1];
+            line[0] = "actual_vas";
+            for (int vas = 0; vas < Main.VAS_VALUE_COUNT; vas++) {
+                line[vas + 1] = "ann_vas_" + FeatureEncoder.decodeVas(vas);
+            }
+            writer.writeNext(line);
+            for (int actual = 0; actual < Main.VAS_VALUE_COUNT; actual++) {
+                line[0] = FeatureEncoder.decodeVas(actual);
+                for (int predicted = 0; predicted < Main.VAS_VALUE_COUNT; predicted++) {
+                    line[predicted + 1] = String.valueOf(confusion.getCount(actual, predicted));
+                }
+                writer.writeNext(line);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        log.info("Wrote cross validation confusion matrix to: " + fileName);
+    }
+
+    private static class Result {
+        final int repetition;
+        final int fold;
+        final int trainingRows;
+        final int verificationRows;
+        final Evaluation eval;
+        final double verificationScore;
+        final double trainingSeconds;
+
+        Result(int repetition, int fold, int trainingRows, int verificationRows, Evaluation eval,
+               double verificationScore, double trainingSeconds) {
+            this.repetition = repetition;
+            this.fold = fold;
+            this.trainingRows = trainingRows;
+            this.verificationRows = verificationRows;
+            this.eval = eval;
+            this.verificationScore = verificationScore;
+            this.trainingSeconds = trainingSeconds;
+        }
+    }
+}
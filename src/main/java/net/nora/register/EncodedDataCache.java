@@ -0,0 +1,163 @@
+package net.nora.register;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Binary cache of {@link EncodedRegisterData}, so repeated runs do not need to read, filter and encode the csv files again.
+ * <p>
+ * A cache file holds the cache key, the csv header, the case ids and the packed VAS and feature codes. It is opened
+ * through {@link FileChannel#map}, the codes are read directly from the mapped file. The key is a hash of the source csv
+ * content, the config values that change the encoded rows and the dictionaries, a cache file with another key is ignored.
+ */
+class EncodedDataCache {
+
+    private static Logger log = LoggerFactory.getLogger(EncodedDataCache.class);
+
+    private static final int MAGIC = 0x414e4e43;
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * @return the hash of the source file content, the config values and the dictionaries used for encoding
+     */
+    String cacheKey(String sourceFileName, String... configValues) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (FileChannel channel = FileChannel.open(new File(sourceFileName).toPath(), StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+                while (channel.read(buffer) > 0) {
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
+                }
+            }
+            for (String configValue : configValues) {
+                digest.update((configValue + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            digest.update(FeatureEncoder.dictionaryVersion().getBytes(StandardCharsets.UTF_8));
+
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the cached data, or null if there is no cache file or it was written for another key
+     */
+    EncodedRegisterData load(File cacheFile, String key) {
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                log.warn("Ignoring cache file " + cacheFile + ", it is too large to be mapped");
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION || !key.equals(readString(buffer))) {
+                log.info("Cache file " + cacheFile + " is outdated");
+                return null;
+            }
+
+            String[] header = new String[buffer.getInt()];
+            for (int i = 0; i < header.length; i++) {
+                header[i] = readString(buffer);
+            }
+            int featureCount = buffer.getInt();
+            String[] caseIds = new String[buffer.getInt()];
+            for (int i = 0; i < caseIds.length; i++) {
+                caseIds[i] = readString(buffer);
+            }
+            ByteBuffer labels = slice(buffer, caseIds.length);
+            ByteBuffer features = slice(buffer, caseIds.length * featureCount);
+
+            log.info("Loaded " + caseIds.length + " encoded rows from cache file " + cacheFile);
+            return new EncodedRegisterData(header, featureCount, caseIds, labels, features);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * writes the data to a temporary file that replaces the cache file when it is complete
+     */
+    void write(File cacheFile, String key, EncodedRegisterData data) {
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            writeString(output, key);
+            output.writeInt(data.getHeader().length);
+            for (String column : data.getHeader()) {
+                writeString(output, column);
+            }
+            output.writeInt(data.getFeatureCount());
+            output.writeInt(data.size());
+            for (int i = 0; i < data.size(); i++) {
+                writeString(output, data.getCaseId(i));
+            }
+            writeBytes(output, data.getLabels());
+            writeBytes(output, data.getFeatures());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        try {
+            Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        log.info("Wrote " + data.size() + " encoded rows to cache file " + cacheFile);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int length) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static void writeBytes(DataOutputStream output, ByteBuffer bytes) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (bytes.hasRemaining()) {
+            int length = Math.min(buffer.length, bytes.remaining());
+            bytes.get(buffer, 0, length);
+            output.write(buffer, 0, length);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package net.nora.register;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Rows of a register or training file encoded by {@link FeatureEncoder}: one byte code per network input and the VAS
+ * code of every row, together with the row's case id. The codes are either held on the heap or mapped from a
+ * {@link EncodedDataCache} file.
+ */
+class EncodedRegisterData {
+
+    private final String[] header;
+    private final int featureCount;
+    private final String[] caseIds;
+    private final ByteBuffer labels;
+    private final ByteBuffer features;
+
+    EncodedRegisterData(String[] header, int featureCount, String[] caseIds, ByteBuffer labels, ByteBuffer features) {
+        this.header = header;
+        this.featureCount = featureCount;
+        this.caseIds = caseIds;
+        this.labels = labels;
+        this.features = features;
+    }
+
+    int size() {
+        return caseIds.length;
+    }
+
+    String[] getHeader() {
+        return header;
+    }
+
+    int getFeatureCount() {
+        return featureCount;
+    }
+
+    String getCaseId(int row) {
+        return caseIds[row];
+    }
+
+    /**
+     * @return the case ids of the rows [from, to), index i holds the case id of the row from + i
+     */
+    String[] getCaseIds(int from, int to) {
+        return Arrays.copyOfRange(caseIds, from, to);
+    }
+
+    /**
+     * @return the VAS values of the rows [from, to), index i holds the VAS value of the row from + i
+     */
+    int[] getVasValues(int from, int to) {
+        int[] vasValues = new int[to - from];
+        for (int i = 0; i < vasValues.length; i++) {
+            vasValues[i] = Integer.parseInt(FeatureEncoder.decodeVas(labels.get(from + i)));
+        }
+        return vasValues;
+    }
+
+    ByteBuffer getLabels() {
+        return labels.duplicate();
+    }
+
+    ByteBuffer getFeatures() {
+        return features.duplicate();
+    }
+
+    /**
+     * builds the features and one hot encoded labels of the rows [from, to)
+     */
+    DataSet toDataSet(int from, int to, int numClasses) {
+        int[] rows = new int[size()];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = i;
+        }
+        return toDataSet(rows, from, to, numClasses);
+    }
+
+    /**
+     * builds the features and one hot encoded labels of the rows rowOrder[from, to)
+     */
+    DataSet toDataSet(int[] rowOrder, int from, int to, int numClasses) {
+        int rowCount = to - from;
+        float[] featureData = new float[rowCount * featureCount];
+        float[] labelData = new float[rowCount * numClasses];
+
+        for (int i = 0; i < rowCount; i++) {
+            int row = rowOrder[from + i];
+            int offset = row * featureCount;
+            for (int j = 0; j < featureCount; j++) {
+                featureData[i * featureCount + j] = features.get(offset + j);
+            }
+            labelData[i * numClasses + labels.get(row)] = 1f;
+        }
+
+        INDArray featureMatrix = Nd4j.create(featureData, new int[]{rowCount, featureCount}, 'c');
+        INDArray labelMatrix = Nd4j.create(labelData, new int[]{rowCount, numClasses}, 'c');
+        return new DataSet(featureMatrix, labelMatrix);
+    }
+}
@@ -0,0 +1,275 @@
+package net.nora.register;
+
+import java.util.Map;
+
+/**
+ * Encodes raw register csv rows into the network input without the string transformation of {@link NetworkDataMapper}.
+ * The dictionary of every column and the position of every column in the network input are resolved once from the
+ * header, encoding a row then only writes the dictionary codes into the given primitive buffer.
+ */
+class FeatureEncoder {
+
+    private static final String[] YES_NO_UNKNOWN = toDictionary(NeuronalNetwork.readEnumCSV("/dictionary/no_yes_unknown_answers.csv"));
+    private static final String[] ELICITORS = toDictionary(NeuronalNetwork.readEnumCSV("/dictionary/elicitors.csv"));
+    private static final String[] SEX = toDictionary(NeuronalNetwork.readEnumCSV("/dictionary/sex.csv"));
+    private static final String[] VAS = toDictionary(NeuronalNetwork.readEnumCSV("/dictionary/vas.csv"));
+
+    static final String ELICITOR_HEADER_NAME = "d_elicitor_gr5";
+    static final String SEX_HEADER_NAME = "sex";
+    // the elicitor dictionary spells unknown as unkown, the registers spell it unknown
+    private static final String UNKNOWN = "unknown";
+    private static final String UNKNOWN_ELICITOR = "unkown";
+    // a pattern holds at most 63 bits, so no pattern is negative
+    static final long NO_PATTERN = -1L;
+
+    // csv column index of every network input
+    private final int[] featureColumns;
+    // dictionary of every network input, the index of a value is its code
+    private final String[][] featureDictionaries;
+    private final int labelColumn;
+    // bits of every network input in a pattern, enough for all codes of its dictionary and one code for an empty value
+    private final int[] patternBits;
+    private final int patternBitCount;
+
+    private FeatureEncoder(String[] header, int[] featureColumns, int labelColumn) {
+        this.featureColumns = featureColumns;
+        this.labelColumn = labelColumn;
+        this.featureDictionaries = new String[featureColumns.length][];
+        this.patternBits = new int[featureColumns.length];
+        int bitCount = 0;
+        for (int i = 0; i < featureColumns.length; i++) {
+            featureDictionaries[i] = dictionaryOf(header[featureColumns[i]]);
+            patternBits[i] = 32 - Integer.numberOfLeadingZeros(featureDictionaries[i].length);
+            bitCount += patternBits[i];
+        }
+        this.patternBitCount = bitCount;
+    }
+
+    /**
+     * resolves the column layout of the network input the same way {@link NetworkDataMapper#transform(RegisterCsvData)}
+     * does: the case id is removed and the VAS column is swapped with the last column.
+     */
+    static FeatureEncoder forHeader(String[] header) {
+        int vasColumn = determineHeaderIndex(header, Main.OUTPUT_HEADER_NAME);
+        if (vasColumn < 1) {
+            throw new IllegalArgumentException("Missing column " + Main.OUTPUT_HEADER_NAME + " in header");
+        }
+        int lastColumn = header.length - 1;
+        int[] columns = new int[header.length - 1];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = i + 1;
+        }
+        columns[vasColumn - 1] = lastColumn;
+        columns[columns.length - 1] = vasColumn;
+
+        int[] featureColumns = new int[columns.length - 1];
+        System.arraycopy(columns, 0, featureColumns, 0, featureColumns.length);
+        return new FeatureEncoder(header, featureColumns, vasColumn);
+    }
+
+    int featureCount() {
+        return featureColumns.length;
+    }
+
+    /**
+     * writes the codes of the row's network inputs to features[offset, offset + featureCount())
+     *
+     * @return the code of the row's VAS value
+     */
+    int encode(String[] csvLine, float[] features, int offset) {
+        for (int i = 0; i < featureColumns.length; i++) {
+            features[offset + i] = encodeValue(featureDictionaries[i], csvLine[featureColumns[i]]);
+        }
+        return encodeValue(VAS, csvLine[labelColumn]);
+    }
+
+    /**
+     * writes the codes of the row's network inputs to features[offset, offset + featureCount())
+     *
+     * @return the code of the row's VAS value
+     */
+    int encode(String[] csvLine, byte[] features, int offset) {
+        for (int i = 0; i < featureColumns.length; i++) {
+            features[offset + i] = (byte) encodeValue(featureDictionaries[i], csvLine[featureColumns[i]]);
+        }
+        return encodeValue(VAS, csvLine[labelColumn]);
+    }
+
+    /**
+     * @return the csv column of the network input at featureIndex
+     */
+    int column(int featureIndex) {
+        return featureColumns[featureIndex];
+    }
+
+    /**
+     * @return the number of bits of a pattern of all network inputs, see {@link #pattern(String[])}
+     */
+    int patternBitCount() {
+        return patternBitCount;
+    }
+
+    /**
+     * @return the codes of the row's network inputs bit packed into one long, e.g. 2 bits per yes/no/unknown answer
+     * and 3 bits for the elicitor. Rows with the same pattern have the same network input.
+     */
+    long pattern(String[] csvLine) {
+        long pattern = patternOrNone(csvLine);
+        if (pattern == NO_PATTERN) {
+            throw new IllegalArgumentException("A value of case " + csvLine[0] + " is not part of its column's dictionary");
+        }
+        return pattern;
+    }
+
+    /**
+     * @return the pattern of the row like {@link #pattern(String[])}, or {@link #NO_PATTERN} if a value of the row is
+     * not part of its column's dictionary, e.g. a misspelled answer of a raw row that is not filtered yet
+     */
+    long patternOrNone(String[] csvLine) {
+        checkPatternBitCount();
+        long pattern = 0;
+        for (int i = 0; i < featureColumns.length; i++) {
+            String value = csvLine[featureColumns[i]];
+            String[] dictionary = featureDictionaries[i];
+            int code = value.isEmpty() ? dictionary.length : patternCode(dictionary, value);
+            if (code < 0) {
+                return NO_PATTERN;
+            }
+            pattern = (pattern << patternBits[i]) | code;
+        }
+        return pattern;
+    }
+
+    /**
+     * @return the pattern of the row like {@link #pattern(String[])} of its csv values, taken from the codes of its
+     * network inputs at features[offset, offset + featureCount()) that were written by {@link #encode}, or
+     * {@link #NO_PATTERN} if a code is not part of its input's dictionary
+     */
+    long pattern(float[] features, int offset) {
+        checkPatternBitCount();
+        long pattern = 0;
+        for (int i = 0; i < featureColumns.length; i++) {
+            int code = (int) features[offset + i];
+            if (code < 0 || code > featureDictionaries[i].length) {
+                return NO_PATTERN;
+            }
+            pattern = (pattern << patternBits[i]) | code;
+        }
+        return pattern;
+    }
+
+    private void checkPatternBitCount() {
+        if (patternBitCount > 63) {
+            throw new IllegalStateException("The answers of " + featureColumns.length + " columns need " + patternBitCount
+                    + " bits, a pattern holds 63");
+        }
+    }
+
+    /**
+     * writes the csv values of the pattern's network inputs to values[0, featureCount())
+     */
+    void decodePattern(long pattern, String[] values) {
+        for (int i = featureColumns.length - 1; i >= 0; i--) {
+            int code = (int) (pattern & ((1L << patternBits[i]) - 1));
+            values[i] = code == featureDictionaries[i].length ? "" : decode(i, code);
+            pattern >>>= patternBits[i];
+        }
+    }
+
+    /**
+     * @return the csv value of the code of the network input at featureIndex
+     */
+    String decode(int featureIndex, int code) {
+        return decodeValue(featureDictionaries[featureIndex], code);
+    }
+
+    static String decodeVas(int code) {
+        return decodeValue(VAS, code);
+    }
+
+    /**
+     * @return the content of all dictionaries, changes whenever the encoding of a value changes
+     */
+    static String dictionaryVersion() {
+        return String.join(",", YES_NO_UNKNOWN) + ";" + String.join(",", ELICITORS) + ";"
+                + String.join(",", SEX) + ";" + String.join(",", VAS) + ";" + UNKNOWN + "=" + UNKNOWN_ELICITOR;
+    }
+
+    /**
+     * @return the value as it is spelled in the dictionary of the column, e.g. unkown for an unknown elicitor
+     */
+    static String dictionaryValue(String columnName, String value) {
+        return dictionaryValue(dictionaryOf(columnName), value);
+    }
+
+    private static String dictionaryValue(String[] dictionary, String value) {
+        return dictionary == ELICITORS && UNKNOWN.equals(value) ? UNKNOWN_ELICITOR : value;
+    }
+
+    private static String decodeValue(String[] dictionary, int code) {
+        return code < dictionary.length ? dictionary[code] : Integer.toString(code);
+    }
+
+    /**
+     * @return the code of the value like {@link #encodeValue}, or -1 if it is not part of the dictionary
+     */
+    private static int patternCode(String[] dictionary, String csvValue) {
+        String value = dictionaryValue(dictionary, csvValue);
+        for (int code = 0; code < dictionary.length; code++) {
+            if (dictionary[code].equals(value)) {
+                return code;
+            }
+        }
+        try {
+            int code = Integer.parseInt(value);
+            return code >= 0 && code <= dictionary.length ? code : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int encodeValue(String[] dictionary, String csvValue) {
+        String value = dictionaryValue(dictionary, csvValue);
+        for (int code = 0; code < dictionary.length; code++) {
+            if (dictionary[code].equals(value)) {
+                return code;
+            }
+        }
+        // values without dictionary are already numeric, e.g. the default VAS value of register data
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("value: " + value + " is not part of the column's dictionary", e);
+        }
+    }
+
+    private static String[] dictionaryOf(String columnName) {
+        if (columnName.equalsIgnoreCase(ELICITOR_HEADER_NAME)) {
+            return ELICITORS;
+        }
+        if (columnName.equalsIgnoreCase(SEX_HEADER_NAME)) {
+            return SEX;
+        }
+        if (columnName.equalsIgnoreCase(Main.OUTPUT_HEADER_NAME)) {
+            return VAS;
+        }
+        return YES_NO_UNKNOWN;
+    }
+
+    private static String[] toDictionary(Map<Integer, String> enums) {
+        String[] dictionary = new String[enums.size()];
+        for (Map.Entry<Integer, String> entry : enums.entrySet()) {
+            dictionary[entry.getKey()] = entry.getValue();
+        }
+        return dictionary;
+    }
+
+    private static int determineHeaderIndex(String[] header, String outputHeaderName) {
+        for (int i = 0; i < header.length; i++) {
+            if (header[i].equalsIgnoreCase(outputHeaderName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
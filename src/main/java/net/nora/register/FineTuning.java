@@ -0,0 +1,128 @@
+package net.nora.register;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.evaluation.classification.Evaluation;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Continues the training of the saved ann on new labelled rows instead of training a new ann from scratch. The new rows
+ * can be mixed with a replay sample of the rows the saved ann was trained on, so it does not forget the old cases. The
+ * fine-tuned ann keeps the normalizer of the saved ann and is trained with a fixed learning rate.
+ * <p>
+ * The saved and the fine-tuned ann are verified on the verification rows of the training data and the held out new
+ * rows. The fine-tuned ann is only saved to output/model.nnet if its verification score is not worse than the score of
+ * the saved ann.
+ */
+class FineTuning {
+
+    private static Logger log = LoggerFactory.getLogger(FineTuning.class);
+
+    private final NeuronalNetwork network;
+    private final DataNormalization normalizer;
+
+    /**
+     * @param normalizer the normalizer of the saved ann
+     */
+    FineTuning(NeuronalNetwork network, DataNormalization normalizer) {
+        this.network = network;
+        this.normalizer = normalizer;
+    }
+
+    /**
+     * @param encodedTrainingData the rows of the training file, the rows before verificationStart are the replay pool
+     * @param newData             the new labelled rows, the last newVerificationRows rows are held out for verification
+     * @return true if the fine-tuned ann was saved
+     */
+    boolean run(String dataDirectoryPath, EncodedRegisterData encodedTrainingData, int verificationStart,
+                EncodedRegisterData newData, int newVerificationRows, int replayRows, int epochs, double learningRate,
+                long seed) throws IOException {
+        if (newVerificationRows < 0 || newVerificationRows >= newData.size()) {
+            throw new IllegalArgumentException("Fine-tuning needs 0 to " + (newData.size() - 1)
+                    + " verification rows of the " + newData.size() + " new rows, not " + newVerificationRows);
+        }
+        int newTrainingRows = newData.size() - newVerificationRows;
+        List<DataSet> trainingParts = new ArrayList<>();
+        trainingParts.add(newData.toDataSet(0, newTrainingRows, Main.VAS_VALUE_COUNT));
+        int replayedRows = Math.min(replayRows, verificationStart);
+        if (replayedRows > 0) {
+            trainingParts.add(encodedTrainingData.toDataSet(replaySample(verificationStart, seed), 0, replayedRows,
+                    Main.VAS_VALUE_COUNT));
+        }
+        List<DataSet> verificationParts = new ArrayList<>();
+        if (verificationStart < encodedTrainingData.size()) {
+            verificationParts.add(encodedTrainingData.toDataSet(verificationStart, encodedTrainingData.size(),
+                    Main.VAS_VALUE_COUNT));
+        }
+        if (newVerificationRows > 0) {
+            verificationParts.add(newData.toDataSet(newTrainingRows, newData.size(), Main.VAS_VALUE_COUNT));
+        }
+        if (verificationParts.isEmpty()) {
+            throw new IllegalArgumentException("Fine-tuning needs verification rows of the training or the new data");
+        }
+        DataSet trainingData = DataSet.merge(trainingParts);
+        DataSet verificationData = DataSet.merge(verificationParts);
+        normalizer.transform(trainingData);
+        normalizer.transform(verificationData);
+        log.info("Fine-tuning the saved ann on " + newTrainingRows + " new and " + replayedRows + " replayed rows, verifying on "
+                + verificationData.numExamples() + " rows...");
+
+        MultiLayerNetwork savedModel = NeuronalNetwork.loadSavedModel(dataDirectoryPath);
+        double savedScore = verify("saved", savedModel, verificationData);
+
+        MultiLayerNetwork initialModel = savedModel.clone();
+        NeuronalNetwork.setTrainingListeners(initialModel);
+        MultiLayerNetwork model = Main.METRICS.time("training",
+                () -> network.train(initialModel, trainingData, verificationData, epochs, learningRate, seed, false));
+        double tunedScore = verify("fine-tuned", model, verificationData);
+
+        if (tunedScore > savedScore) {
+            log.warn("The fine-tuned ann is not saved, its verification score " + tunedScore
+                    + " is worse than the score " + savedScore + " of the saved ann");
+            return false;
+        }
+        File file = new File(dataDirectoryPath + "/output/model.nnet");
+        NeuronalNetwork.saveModel(model, normalizer, file);
+        log.info("Wrote the fine-tuned ann with the verification score " + tunedScore + " instead of " + savedScore
+                + " to: " + file);
+        return true;
+    }
+
+    /**
+     * @return the verification score of the model, lower is better
+     */
+    private static double verify(String name, MultiLayerNetwork model, DataSet verificationData) {
+        Evaluation eval = new Evaluation(Main.VAS_VALUE_COUNT);
+        eval.eval(verificationData.getLabels(), model.output(verificationData.getFeatures()));
+        double score = model.score(verificationData);
+        log.info("Verification of the " + name + " ann: score " + score + ", accuracy " + eval.accuracy()
+                + ", f1 " + eval.f1());
+        return score;
+    }
+
+    /**
+     * @return the rows [0, rows) in a random order, the replayed rows are the first ones
+     */
+    private static int[] replaySample(int rows, long seed) {
+        int[] rowOrder = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            rowOrder[i] = i;
+        }
+        Random random = new Random(seed);
+        for (int i = rows - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int row = rowOrder[i];
+            rowOrder[i] = rowOrder[j];
+            rowOrder[j] = row;
+        }
+        return rowOrder;
+    }
+}
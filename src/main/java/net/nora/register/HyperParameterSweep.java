@@ -0,0 +1,237 @@
+package net.nora.register;
+
+import com.opencsv.CSVWriter;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.evaluation.classification.Evaluation;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Trains one model for every combination of the configured seeds, epochs, hidden layer sizes and learning rates on a
+ * bounded thread pool. All models share the encoded training data. The verification metrics of every model are written
+ * to output/sweep_leaderboard.csv and the best model to output/sweep_best.nnet.
+ */
+class HyperParameterSweep {
+
+    private static Logger log = LoggerFactory.getLogger(HyperParameterSweep.class);
+
+    private static final String[] LEADERBOARD_HEADER = new String[]{"rank",
+            "ann.initalizing.seed",
+            "training.data.shuffle.seed",
+            "training.epochs",
+            "ann.hidden.layer.size",
+            "training.learning.rate",
+            "accuracy",
+            "precision",
+            "recall",
+            "f1",
+            "verification_score",
+            "training_seconds"};
+
+    private final NeuronalNetwork network;
+    private final EncodedRegisterData encodedData;
+    // the encoded row of every row of the csv file, -1 for filtered rows
+    private final int[] csvRowToEncodedRow;
+    private final int trainingDataSize;
+
+    /**
+     * @param trainingDataSize the number of rows used for training, the remaining rows are used for verification
+     *                         (-1 uses all rows for training and verification)
+     */
+    HyperParameterSweep(NeuronalNetwork network, EncodedRegisterData encodedData, int[] csvRowToEncodedRow, int trainingDataSize) {
+        this.network = network;
+        this.encodedData = encodedData;
+        this.csvRowToEncodedRow = csvRowToEncodedRow;
+        this.trainingDataSize = trainingDataSize;
+    }
+
+    void run(String dataDirectoryPath, List<Configuration> configurations, int threads) {
+        log.info("Training " + configurations.size() + " configurations on " + threads + " threads...");
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Result> results = new ArrayList<>();
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (Configuration configuration : configurations) {
+                futures.add(executor.submit(() -> train(configuration)));
+            }
+            for (Future<Result> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Training of a sweep configuration failed", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+
+        results.sort(Comparator.comparingDouble((Result result) -> result.accuracy)
+                .thenComparingDouble(result -> result.f1)
+                .reversed());
+        writeLeaderboard(results, dataDirectoryPath + "/output/sweep_leaderboard.csv");
+        try {
+            Result best = results.get(0);
+            NeuronalNetwork.saveModel(best.model, best.normalizer, new File(dataDirectoryPath + "/output/sweep_best.nnet"));
+            log.info("Best configuration: " + best.configuration + " with accuracy " + best.accuracy + " and f1 " + best.f1);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Result train(Configuration configuration) {
+        long start = System.currentTimeMillis();
+        int[] rowOrder = shuffledRows(configuration.shuffleSeed);
+        int trainingRows = trainingDataSize < 0 ? rowOrder.length : trainingDataSize;
+        int verificationStart = trainingDataSize < 0 ? 0 : trainingRows;
+        DataSet trainingData = encodedData.toDataSet(rowOrder, 0, trainingRows, Main.VAS_VALUE_COUNT);
+        DataSet verificationData = encodedData.toDataSet(rowOrder, verificationStart, rowOrder.length, Main.VAS_VALUE_COUNT);
+
+        DataNormalization normalizer = NeuronalNetwork.fitNormalizer(trainingData);
+        if (Main.COLLAPSE_DUPLICATES) {
+            trainingData = NeuronalNetwork.collapseDuplicates(trainingData, encodedData.getHeader());
+        }
+        normalizer.transform(trainingData);
+        normalizer.transform(verificationData);
+
+        MultiLayerNetwork model = network.buildModel(configuration.annSeed, configuration.hiddenLayerSize, configuration.learningRate);
+        model = network.train(model, trainingData, verificationData, configuration.epochs, configuration.learningRate, configuration.annSeed);
+
+        Evaluation eval = new Evaluation(Main.VAS_VALUE_COUNT);
+        eval.eval(verificationData.getLabels(), model.output(verificationData.getFeatures()));
+        Result result = new Result(configuration, model, normalizer, eval, model.score(verificationData),
+                (System.currentTimeMillis() - start) / 1000.0);
+        log.info("Trained " + configuration + ": accuracy " + result.accuracy + ", f1 " + result.f1);
+        return result;
+    }
+
+    /**
+     * shuffles the csv rows the same way as a single training run with this seed and drops the filtered rows
+     */
+    private int[] shuffledRows(long shuffleSeed) {
+        List<Integer> csvRows = new ArrayList<>(csvRowToEncodedRow.length);
+        for (int i = 0; i < csvRowToEncodedRow.length; i++) {
+            csvRows.add(i);
+        }
+        Collections.shuffle(csvRows, new Random(shuffleSeed));
+
+        int[] rowOrder = new int[encodedData.size()];
+        int row = 0;
+        for (int csvRow : csvRows) {
+            if (csvRowToEncodedRow[csvRow] >= 0) {
+                rowOrder[row++] = csvRowToEncodedRow[csvRow];
+            }
+        }
+        return rowOrder;
+    }
+
+    private void writeLeaderboard(List<Result> results, String fileName) {
+        try (Writer fileWriter = new OutputStreamWriter(new FileOutputStream(new File(fileName)), StandardCharsets.UTF_8)) {
+            CSVWriter writer = new CSVWriter(fileWriter, ',', CSVWriter.NO_QUOTE_CHARACTER);
+            writer.writeNext(LEADERBOARD_HEADER);
+            for (int i = 0; i < results.size(); i++) {
+                Result result = results.get(i);
+                Configuration configuration = result.configuration;
+                writer.writeNext(new String[]{
+                        String.valueOf(i + 1),
+                        String.valueOf(configuration.annSeed),
+                        String.valueOf(configuration.shuffleSeed),
+                        String.valueOf(configuration.epochs),
+                        String.valueOf(configuration.hiddenLayerSize),
+                        String.valueOf(configuration.learningRate),
+                        String.valueOf(result.accuracy),
+                        String.valueOf(result.precision),
+                        String.valueOf(result.recall),
+                        String.valueOf(result.f1),
+                        String.valueOf(result.verificationScore),
+                        String.valueOf(result.trainingSeconds)});
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        log.info("Wrote sweep leaderboard to: " + fileName);
+    }
+
+    /**
+     * @return every combination of the given values
+     */
+    static List<Configuration> combinations(List<Long> annSeeds, List<Long> shuffleSeeds, List<Long> epochs,
+                                            List<Long> hiddenLayerSizes, List<Double> learningRates) {
+        List<Configuration> configurations = new ArrayList<>();
+        for (long annSeed : annSeeds) {
+            for (long shuffleSeed : shuffleSeeds) {
+                for (long epochCount : epochs) {
+                    for (long hiddenLayerSize : hiddenLayerSizes) {
+                        for (double learningRate : learningRates) {
+                            configurations.add(new Configuration(annSeed, shuffleSeed, (int) epochCount,
+                                    (int) hiddenLayerSize, learningRate));
+                        }
+                    }
+                }
+            }
+        }
+        return configurations;
+    }
+
+    static class Configuration {
+        final long annSeed;
+        final long shuffleSeed;
+        final int epochs;
+        final int hiddenLayerSize;
+        final double learningRate;
+
+        Configuration(long annSeed, long shuffleSeed, int epochs, int hiddenLayerSize, double learningRate) {
+            this.annSeed = annSeed;
+            this.shuffleSeed = shuffleSeed;
+            this.epochs = epochs;
+            this.hiddenLayerSize = hiddenLayerSize;
+            this.learningRate = learningRate;
+        }
+
+        @Override
+        public String toString() {
+            return "[ann seed " + annSeed + ", shuffle seed " + shuffleSeed + ", epochs " + epochs
+                    + ", hidden layer size " + hiddenLayerSize + ", learning rate " + learningRate + "]";
+        }
+    }
+
+    private static class Result {
+        final Configuration configuration;
+        final MultiLayerNetwork model;
+        final DataNormalization normalizer;
+        final double accuracy;
+        final double precision;
+        final double recall;
+        final double f1;
+        final double verificationScore;
+        final double trainingSeconds;
+
+        Result(Configuration configuration, MultiLayerNetwork model, DataNormalization normalizer, Evaluation eval,
+               double verificationScore, double trainingSeconds) {
+            this.configuration = configuration;
+            this.model = model;
+            this.normalizer = normalizer;
+            this.accuracy = eval.accuracy();
+            this.precision = eval.precision();
+            this.recall = eval.recall();
+            this.f1 = eval.f1();
+            this.verificationScore = verificationScore;
+            this.trainingSeconds = trainingSeconds;
+        }
+    }
+}
@@ -1,7 +1,8 @@
 package net.nora.register;
 
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.tuple.Pair;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -9,6 +10,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URISyntaxException;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -30,61 +32,215 @@ public class Main {
     private static int TRAINING_DATA_SIZE;
     static boolean EVALUATE_MODEL_DURING_TRAINING;
     static int EPOCHS;
+    static int BATCH_SIZE;
+    static int EARLY_STOPPING_PATIENCE;
+    static int EARLY_STOPPING_INTERVAL;
+    static int TRAINING_WORKERS;
+    static int AVERAGING_FREQUENCY;
+    static int PREFETCH_BUFFER;
+    static int CHECKPOINT_EPOCHS;
+    static long CHECKPOINT_MINUTES;
+    static int CHECKPOINT_KEEP;
+    static boolean RESUME_TRAINING;
     private static boolean FILTER_UNKNOWN;
     static boolean FILTER_DUPLICATES;
+    static boolean COLLAPSE_DUPLICATES;
     private static String DATA_FILE_NAME;
     private static String REGISTER_FILE_NAME;
+    static String OUTPUT_FILE_NAME;
     static boolean LOAD_ANN_FROM_FILE;
     static String ANN_FILE_NAME;
+    private static boolean EXPORT_COMPACT_ANN;
+    private static String COMPACT_ANN_FILE_NAME;
+    private static boolean QUANTIZED_COMPACT_ANN;
+    private static boolean IN_MEMORY_PIPELINE;
+    private static boolean WRITE_TEMP_FILES;
+    private static boolean WRITE_PATTERN_TABLE;
+    static int PREDICTION_CACHE_SIZE;
+    private static int REGISTER_CHUNK_SIZE;
+    static int SCORING_BATCH_SIZE;
+    private static boolean PIPELINED_SCORING;
+    private static boolean INCREMENTAL_SCORING;
+    private static boolean METRICS_ENABLED;
+    private static long METRICS_INTERVAL_SECONDS;
+    static int INPUT_READ_THREADS;
+    private static boolean CACHE_ENCODED_DATA;
+    static int HIDDEN_LAYER_SIZE;
+    static double LEARNING_RATE;
+    private static boolean SERVER;
+    private static String SERVER_BIND_ADDRESS;
+    private static int SERVER_PORT;
+    private static int SERVER_THREADS;
+    private static int SERVER_BATCH_SIZE;
+    private static long SERVER_BATCH_WAIT_MILLIS;
+    private static boolean SWEEP;
+    private static int SWEEP_THREADS;
+    private static List<Long> SWEEP_ANN_SEEDS;
+    private static List<Long> SWEEP_SHUFFLE_SEEDS;
+    private static List<Long> SWEEP_EPOCHS;
+    private static List<Long> SWEEP_HIDDEN_LAYER_SIZES;
+    private static List<Double> SWEEP_LEARNING_RATES;
+    private static int CROSS_VALIDATION_FOLDS;
+    private static int CROSS_VALIDATION_REPETITIONS;
+    private static int CROSS_VALIDATION_THREADS;
+    private static boolean FINE_TUNING;
+    private static String FINE_TUNING_FILE_NAME;
+    private static int FINE_TUNING_VERIFICATION_ROWS;
+    private static int FINE_TUNING_REPLAY_ROWS;
+    private static int FINE_TUNING_EPOCHS;
+    private static double FINE_TUNING_LEARNING_RATE;
 
     // Dependencies
     private static RegisterCsvReader csvReader = new RegisterCsvReader();
     private static RegisterCsvWriter csvWriter = new RegisterCsvWriter();
     private static NetworkDataMapper mapper = new NetworkDataMapper();
+    private static EncodedDataCache dataCache = new EncodedDataCache();
     private static NeuronalNetwork deep4jNetwork = new NeuronalNetwork(VAS_VALUE_COUNT);
+    static final Metrics METRICS = new Metrics();
 
     public static void main(String[] args) throws Exception {
         String dataDirectoryPath = setupDataDirectory(args);
 
         readConfig(dataDirectoryPath);
+        if (WRITE_PATTERN_TABLE) {
+            csvReader.setPatternTableDirectory(new File(dataDirectoryPath + "/temp"));
+        }
+        if (METRICS_ENABLED) {
+            METRICS.start(dataDirectoryPath, METRICS_INTERVAL_SECONDS);
+        }
 
-        // prepare training and verification data
-        log.info("Reading test data file(" + dataDirectoryPath + "/input/" + DATA_FILE_NAME + ") for training and verification...");
-        final RegisterCsvData trainingCsvData = csvReader.read(dataDirectoryPath + "/input/" + DATA_FILE_NAME);
-        Collections.shuffle(trainingCsvData.getCsvData(), new Random(SHUFFLE_SEED));
-        filterTrainingData(trainingCsvData);
-        Map<String, Pair<String, Integer>> answersCaseIdMap = createCaseIdMap(trainingCsvData);
-        final RegisterCsvData transformedTrainingData = mapper.transform(trainingCsvData);
-        csvWriter.write(transformedTrainingData, TRAINING_DATA_SIZE,
-                dataDirectoryPath + "/temp/train_data.csv",
-                dataDirectoryPath + "/temp/verification_data.csv");
+        if (SWEEP) {
+            runSweep(dataDirectoryPath);
+            System.exit(0);
+        }
 
+        if (CROSS_VALIDATION_FOLDS > 0) {
+            runCrossValidation(dataDirectoryPath);
+            System.exit(0);
+        }
 
-        // load register data to classify
-        log.info("Reading register data file(" + dataDirectoryPath + "/input/" + REGISTER_FILE_NAME + ") to classify with ann...");
-        final RegisterCsvData registerCsvData = csvReader.read(dataDirectoryPath + "/input/" + REGISTER_FILE_NAME);
-        filterRegisterData(registerCsvData);
-        Map<Integer, String> finalRegisterRowNumberToCaseId = createRowToCaseIdMap(registerCsvData);
-        final RegisterCsvData transformedRegisterData = mapper.transform(registerCsvData);
-        csvWriter.write(transformedRegisterData, dataDirectoryPath + "/temp/register_data.csv");
+        if (FINE_TUNING) {
+            runFineTuning(dataDirectoryPath);
+            System.exit(0);
+        }
+
+        if (EXPORT_COMPACT_ANN) {
+            exportCompactAnn(dataDirectoryPath);
+            System.exit(0);
+        }
+
+        // the compact ann is scored without nd4j
+        if (LOAD_ANN_FROM_FILE && !COMPACT_ANN_FILE_NAME.isEmpty()) {
+            scoreRegisterWithCompactAnn(dataDirectoryPath);
+            System.exit(0);
+        }
+
+        // a saved ann that contains its normalizer does not need the training data
+        if (LOAD_ANN_FROM_FILE) {
+            DataNormalization savedNormalizer = deep4jNetwork.loadSavedNormalizer(dataDirectoryPath);
+            if (savedNormalizer != null) {
+                scoreWithSavedAnn(dataDirectoryPath, savedNormalizer);
+                return;
+            }
+        }
 
+        // prepare training and verification data
+        final EncodedRegisterData encodedTrainingData = readTrainingData(dataDirectoryPath);
 
-        int mappedVasIndex = transformedTrainingData.getCsvData().get(0).length - 1;
-        int verificationDataSize = transformedTrainingData.getCsvData().size() - TRAINING_DATA_SIZE;
+        // the mapped data has no case_id column and the VAS value as last column
+        int mappedVasIndex = encodedTrainingData.getHeader().length - 2;
+        int verificationDataSize = encodedTrainingData.size() - TRAINING_DATA_SIZE;
         if (TRAINING_DATA_SIZE < 0) {
-            verificationDataSize = transformedTrainingData.getCsvData().size();
+            verificationDataSize = encodedTrainingData.size();
+        }
+        int trainingDataSize = getTrainingSize(verificationDataSize);
+        log.info("vasIndex: " + mappedVasIndex);
+
+        final DataSet trainingData;
+        final DataSet verificationData;
+        // the first encoded training data row of the verification data
+        final int verificationStart = TRAINING_DATA_SIZE < 0 ? 0 : trainingDataSize;
+        if (IN_MEMORY_PIPELINE) {
+            trainingData = encodedTrainingData.toDataSet(0, trainingDataSize, VAS_VALUE_COUNT);
+            verificationData = encodedTrainingData.toDataSet(verificationStart, encodedTrainingData.size(), VAS_VALUE_COUNT);
+        } else {
+            trainingData = NeuronalNetwork.readCSVDataset(dataDirectoryPath + "/temp/train_data.csv",
+                    trainingDataSize, mappedVasIndex, VAS_VALUE_COUNT);
+            verificationData = NeuronalNetwork.readCSVDataset(dataDirectoryPath + "/temp/verification_data.csv",
+                    verificationDataSize, mappedVasIndex, VAS_VALUE_COUNT);
+        }
+
+        if (SERVER) {
+            startScoringServer(dataDirectoryPath, NeuronalNetwork.fitNormalizer(trainingData), encodedTrainingData.getHeader());
+            return;
+        }
+
+        if (LOAD_ANN_FROM_FILE && (REGISTER_CHUNK_SIZE > 0 || INCREMENTAL_SCORING)) {
+            scoreRegisterInChunks(dataDirectoryPath, NeuronalNetwork.fitNormalizer(trainingData));
+            System.exit(0);
         }
+
+
+        // load register data to classify
+        final EncodedRegisterData encodedRegisterData = readRegisterData(dataDirectoryPath);
+        final DataSet registerData = toRegisterDataSet(dataDirectoryPath, encodedRegisterData);
+
+        // the case ids and VAS values are joined to the scored rows by their row index
+        int verificationEnd = verificationStart + verificationData.numExamples();
         deep4jNetwork.run(
                 dataDirectoryPath,
-                getTrainingSize(verificationDataSize),
-                verificationDataSize,
-                mappedVasIndex,
-                answersCaseIdMap,
-                finalRegisterRowNumberToCaseId);
+                trainingData,
+                verificationData,
+                encodedTrainingData.getCaseIds(verificationStart, verificationEnd),
+                encodedTrainingData.getVasValues(verificationStart, verificationEnd),
+                encodedTrainingData.getHeader(),
+                registerData,
+                encodedRegisterData.getCaseIds(0, encodedRegisterData.size()),
+                FeatureEncoder.forHeader(encodedRegisterData.getHeader()));
 
         System.exit(0);
     }
 
+    /**
+     * scores the register, or starts the server, with the saved ann and the normalizer saved with it
+     */
+    private static void scoreWithSavedAnn(String dataDirectoryPath, DataNormalization normalizer) throws IOException, InterruptedException {
+        if (SERVER) {
+            startScoringServer(dataDirectoryPath, normalizer,
+                    csvReader.readHeader(dataDirectoryPath + "/input/" + REGISTER_FILE_NAME));
+            return;
+        }
+        if (REGISTER_CHUNK_SIZE > 0 || INCREMENTAL_SCORING) {
+            scoreRegisterInChunks(dataDirectoryPath, normalizer);
+            System.exit(0);
+        }
+
+        final EncodedRegisterData encodedRegisterData = readRegisterData(dataDirectoryPath);
+        deep4jNetwork.runSaved(dataDirectoryPath, normalizer, toRegisterDataSet(dataDirectoryPath, encodedRegisterData),
+                encodedRegisterData.getCaseIds(0, encodedRegisterData.size()),
+                FeatureEncoder.forHeader(encodedRegisterData.getHeader()));
+        System.exit(0);
+    }
+
+    private static DataSet toRegisterDataSet(String dataDirectoryPath, EncodedRegisterData encodedRegisterData) throws IOException, InterruptedException {
+        int registerDataSize = encodedRegisterData.size();
+        if (IN_MEMORY_PIPELINE) {
+            return encodedRegisterData.toDataSet(0, registerDataSize, VAS_VALUE_COUNT);
+        }
+        // the mapped data has no case_id column and the VAS value as last column
+        int mappedVasIndex = encodedRegisterData.getHeader().length - 2;
+        return NeuronalNetwork.readCSVDataset(dataDirectoryPath + "/temp/register_data.csv",
+                registerDataSize, mappedVasIndex, VAS_VALUE_COUNT);
+    }
+
+    private static void startScoringServer(String dataDirectoryPath, DataNormalization normalizer, String[] header) throws IOException {
+        int threads = SERVER_THREADS > 0 ? SERVER_THREADS : Runtime.getRuntime().availableProcessors();
+        ScoringServer server = deep4jNetwork.createScoringServer(dataDirectoryPath, normalizer, header, SERVER_BATCH_SIZE,
+                SERVER_BATCH_WAIT_MILLIS);
+        server.start(SERVER_BIND_ADDRESS, SERVER_PORT, threads);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "scoring-server-stop"));
+    }
+
     private static void readConfig(String dataDirectoryPath) {
         try (InputStream configProperties = new FileInputStream(new File(dataDirectoryPath + "/config.properties"))) {
             Properties prop = new Properties();
@@ -96,26 +252,142 @@ public class Main {
             SEED = Long.parseLong(prop.getProperty("ann.initalizing.seed"));
             TRAINING_DATA_SIZE = Integer.parseInt(prop.getProperty("training.data.size"));
             EPOCHS = Integer.parseInt(prop.getProperty("training.epochs"));
+            BATCH_SIZE = Integer.parseInt(prop.getProperty("training.batch.size", "-1"));
+            EARLY_STOPPING_PATIENCE = Integer.parseInt(prop.getProperty("training.early.stopping.patience", "0"));
+            EARLY_STOPPING_INTERVAL = Integer.parseInt(prop.getProperty("training.early.stopping.interval", "100"));
+            TRAINING_WORKERS = Integer.parseInt(prop.getProperty("training.workers", "1"));
+            AVERAGING_FREQUENCY = Integer.parseInt(prop.getProperty("training.averaging.frequency", "5"));
+            PREFETCH_BUFFER = Integer.parseInt(prop.getProperty("training.prefetch.buffer", "4"));
+            CHECKPOINT_EPOCHS = Integer.parseInt(prop.getProperty("training.checkpoint.epochs", "0"));
+            CHECKPOINT_MINUTES = Long.parseLong(prop.getProperty("training.checkpoint.minutes", "0"));
+            CHECKPOINT_KEEP = Integer.parseInt(prop.getProperty("training.checkpoint.keep", "3"));
+            RESUME_TRAINING = Boolean.parseBoolean(prop.getProperty("training.resume", "false"));
             EVALUATE_MODEL_DURING_TRAINING = Boolean.parseBoolean(prop.getProperty("training.evaluate.while.training"));
             REGISTER_FILE_NAME = prop.getProperty("register.data.file");
+            OUTPUT_FILE_NAME = prop.getProperty("register.output.file", "ann_calculated.csv");
             FILTER_UNKNOWN = Boolean.parseBoolean(prop.getProperty("training.data.ignore.unknown"));
             FILTER_DUPLICATES = Boolean.parseBoolean(prop.getProperty("training.data.filter.duplicate"));
+            COLLAPSE_DUPLICATES = Boolean.parseBoolean(prop.getProperty("training.data.collapse.duplicate", "false"));
             LOAD_ANN_FROM_FILE = Boolean.parseBoolean(prop.getProperty("ann.use.saved.ann"));
             ANN_FILE_NAME = prop.getProperty("ann.file.name");
+            EXPORT_COMPACT_ANN = Boolean.parseBoolean(prop.getProperty("ann.compact.export", "false"));
+            COMPACT_ANN_FILE_NAME = prop.getProperty("ann.compact.file.name", "");
+            QUANTIZED_COMPACT_ANN = Boolean.parseBoolean(prop.getProperty("ann.compact.quantized", "false"));
+            PREDICTION_CACHE_SIZE = Integer.parseInt(prop.getProperty("ann.prediction.cache.size", "0"));
+            IN_MEMORY_PIPELINE = Boolean.parseBoolean(prop.getProperty("pipeline.in.memory", "true"));
+            WRITE_TEMP_FILES = Boolean.parseBoolean(prop.getProperty("pipeline.write.temp.files", "false"));
+            REGISTER_CHUNK_SIZE = Integer.parseInt(prop.getProperty("register.data.chunk.size", "0"));
+            SCORING_BATCH_SIZE = Integer.parseInt(prop.getProperty("register.batch.size", "0"));
+            PIPELINED_SCORING = Boolean.parseBoolean(prop.getProperty("register.pipelined", "false"));
+            INCREMENTAL_SCORING = Boolean.parseBoolean(prop.getProperty("register.incremental", "false"));
+            INPUT_READ_THREADS = Integer.parseInt(prop.getProperty("input.read.threads", "1"));
+            WRITE_PATTERN_TABLE = Boolean.parseBoolean(prop.getProperty("input.write.pattern.table", "false"));
+            CACHE_ENCODED_DATA = Boolean.parseBoolean(prop.getProperty("pipeline.cache.encoded.data", "false"));
+            HIDDEN_LAYER_SIZE = Integer.parseInt(prop.getProperty("ann.hidden.layer.size", "33"));
+            LEARNING_RATE = Double.parseDouble(prop.getProperty("training.learning.rate", "0.6"));
+            METRICS_ENABLED = Boolean.parseBoolean(prop.getProperty("metrics.enabled", "false"));
+            METRICS_INTERVAL_SECONDS = Long.parseLong(prop.getProperty("metrics.interval.seconds", "10"));
+            SERVER = Boolean.parseBoolean(prop.getProperty("server.enabled", "false"));
+            SERVER_BIND_ADDRESS = prop.getProperty("server.bind.address", "");
+            SERVER_PORT = Integer.parseInt(prop.getProperty("server.port", "8080"));
+            SERVER_THREADS = Integer.parseInt(prop.getProperty("server.threads", "0"));
+            SERVER_BATCH_SIZE = Integer.parseInt(prop.getProperty("server.batch.size", "256"));
+            SERVER_BATCH_WAIT_MILLIS = Long.parseLong(prop.getProperty("server.batch.wait.millis", "2"));
+            SWEEP = Boolean.parseBoolean(prop.getProperty("sweep.enabled", "false"));
+            SWEEP_THREADS = Integer.parseInt(prop.getProperty("sweep.threads", "0"));
+            SWEEP_ANN_SEEDS = parseLongValues(prop.getProperty("sweep.ann.initalizing.seed", String.valueOf(SEED)));
+            SWEEP_SHUFFLE_SEEDS = parseLongValues(prop.getProperty("sweep.training.data.shuffle.seed", String.valueOf(SHUFFLE_SEED)));
+            SWEEP_EPOCHS = parseLongValues(prop.getProperty("sweep.training.epochs", String.valueOf(EPOCHS)));
+            SWEEP_HIDDEN_LAYER_SIZES = parseLongValues(prop.getProperty("sweep.ann.hidden.layer.size", String.valueOf(HIDDEN_LAYER_SIZE)));
+            SWEEP_LEARNING_RATES = parseDoubleValues(prop.getProperty("sweep.training.learning.rate", String.valueOf(LEARNING_RATE)));
+            CROSS_VALIDATION_FOLDS = Integer.parseInt(prop.getProperty("cv.folds", "0"));
+            CROSS_VALIDATION_REPETITIONS = Integer.parseInt(prop.getProperty("cv.repetitions", "1"));
+            CROSS_VALIDATION_THREADS = Integer.parseInt(prop.getProperty("cv.threads", "0"));
+            FINE_TUNING = Boolean.parseBoolean(prop.getProperty("finetune.enabled", "false"));
+            FINE_TUNING_FILE_NAME = prop.getProperty("finetune.data.file", "");
+            FINE_TUNING_VERIFICATION_ROWS = Integer.parseInt(prop.getProperty("finetune.verification.rows", "0"));
+            FINE_TUNING_REPLAY_ROWS = Integer.parseInt(prop.getProperty("finetune.replay.rows", "0"));
+            FINE_TUNING_EPOCHS = Integer.parseInt(prop.getProperty("finetune.epochs", "1000"));
+            FINE_TUNING_LEARNING_RATE = Double.parseDouble(prop.getProperty("finetune.learning.rate", "0.1"));
 
             // log the property values
             System.out.println("===== Configuration =====");
             System.out.println("training.data.file: " + prop.getProperty("training.data.file"));
             System.out.println("training.epochs: " + prop.getProperty("training.epochs"));
             System.out.println("training.evaluate.while.training: " + prop.getProperty("training.evaluate.while.training"));
+            System.out.println("training.batch.size: " + BATCH_SIZE);
+            System.out.println("training.early.stopping.patience: " + EARLY_STOPPING_PATIENCE);
+            System.out.println("training.early.stopping.interval: " + EARLY_STOPPING_INTERVAL);
+            System.out.println("training.workers: " + TRAINING_WORKERS);
+            if (TRAINING_WORKERS > 1) {
+                System.out.println("training.averaging.frequency: " + AVERAGING_FREQUENCY);
+                System.out.println("training.prefetch.buffer: " + PREFETCH_BUFFER);
+            }
+            System.out.println("training.checkpoint.epochs: " + CHECKPOINT_EPOCHS);
+            System.out.println("training.checkpoint.minutes: " + CHECKPOINT_MINUTES);
+            if (CHECKPOINT_EPOCHS > 0 || CHECKPOINT_MINUTES > 0) {
+                System.out.println("training.checkpoint.keep: " + CHECKPOINT_KEEP);
+            }
+            System.out.println("training.resume: " + RESUME_TRAINING);
             System.out.println("training.data.size: " + prop.getProperty("training.data.size"));
             System.out.println("training.data.shuffle.seed: " + prop.getProperty("training.data.shuffle.seed"));
             System.out.println("register.data.file: " + prop.getProperty("register.data.file"));
+            System.out.println("register.output.file: " + OUTPUT_FILE_NAME);
             System.out.println("ann.initalizing.seed: " + prop.getProperty("ann.initalizing.seed"));
             System.out.println("training.data.ignore.unknown: " + prop.getProperty("training.data.ignore.unknown"));
             System.out.println("training.data.filter.duplicate: " + prop.getProperty("training.data.filter.duplicate"));
+            System.out.println("training.data.collapse.duplicate: " + COLLAPSE_DUPLICATES);
             System.out.println("ann.use.saved.ann: " + prop.getProperty("ann.use.saved.ann"));
             System.out.println("ann.file.name: " + prop.getProperty("ann.file.name"));
+            System.out.println("ann.compact.export: " + EXPORT_COMPACT_ANN);
+            System.out.println("ann.compact.file.name: " + COMPACT_ANN_FILE_NAME);
+            System.out.println("ann.compact.quantized: " + QUANTIZED_COMPACT_ANN);
+            System.out.println("ann.prediction.cache.size: " + PREDICTION_CACHE_SIZE);
+            System.out.println("register.data.chunk.size: " + REGISTER_CHUNK_SIZE);
+            System.out.println("register.batch.size: " + SCORING_BATCH_SIZE);
+            System.out.println("register.pipelined: " + PIPELINED_SCORING);
+            System.out.println("register.incremental: " + INCREMENTAL_SCORING);
+            System.out.println("input.read.threads: " + INPUT_READ_THREADS);
+            System.out.println("input.write.pattern.table: " + WRITE_PATTERN_TABLE);
+            System.out.println("ann.hidden.layer.size: " + HIDDEN_LAYER_SIZE);
+            System.out.println("training.learning.rate: " + LEARNING_RATE);
+            System.out.println("pipeline.in.memory: " + IN_MEMORY_PIPELINE);
+            System.out.println("pipeline.write.temp.files: " + WRITE_TEMP_FILES);
+            System.out.println("pipeline.cache.encoded.data: " + CACHE_ENCODED_DATA);
+            System.out.println("metrics.enabled: " + METRICS_ENABLED);
+            if (METRICS_ENABLED) {
+                System.out.println("metrics.interval.seconds: " + METRICS_INTERVAL_SECONDS);
+            }
+            System.out.println("server.enabled: " + SERVER);
+            if (SERVER) {
+                System.out.println("server.bind.address: " + SERVER_BIND_ADDRESS);
+                System.out.println("server.port: " + SERVER_PORT);
+                System.out.println("server.threads: " + SERVER_THREADS);
+                System.out.println("server.batch.size: " + SERVER_BATCH_SIZE);
+                System.out.println("server.batch.wait.millis: " + SERVER_BATCH_WAIT_MILLIS);
+            }
+            System.out.println("sweep.enabled: " + SWEEP);
+            if (SWEEP) {
+                System.out.println("sweep.threads: " + SWEEP_THREADS);
+                System.out.println("sweep.ann.initalizing.seed: " + SWEEP_ANN_SEEDS);
+                System.out.println("sweep.training.data.shuffle.seed: " + SWEEP_SHUFFLE_SEEDS);
+                System.out.println("sweep.training.epochs: " + SWEEP_EPOCHS);
+                System.out.println("sweep.ann.hidden.layer.size: " + SWEEP_HIDDEN_LAYER_SIZES);
+                System.out.println("sweep.training.learning.rate: " + SWEEP_LEARNING_RATES);
+            }
+            System.out.println("cv.folds: " + CROSS_VALIDATION_FOLDS);
+            if (CROSS_VALIDATION_FOLDS > 0) {
+                System.out.println("cv.repetitions: " + CROSS_VALIDATION_REPETITIONS);
+                System.out.println("cv.threads: " + CROSS_VALIDATION_THREADS);
+            }
+            System.out.println("finetune.enabled: " + FINE_TUNING);
+            if (FINE_TUNING) {
+                System.out.println("finetune.data.file: " + FINE_TUNING_FILE_NAME);
+                System.out.println("finetune.verification.rows: " + FINE_TUNING_VERIFICATION_ROWS);
+                System.out.println("finetune.replay.rows: " + FINE_TUNING_REPLAY_ROWS);
+                System.out.println("finetune.epochs: " + FINE_TUNING_EPOCHS);
+                System.out.println("finetune.learning.rate: " + FINE_TUNING_LEARNING_RATE);
+            }
             System.out.println("===== End Configuration =====");
             System.out.println();
 
@@ -124,6 +396,30 @@ public class Main {
         }
     }
 
+    /**
+     * parses comma separated values and ranges, e.g. "1,2,5..8"
+     */
+    private static List<Long> parseLongValues(String values) {
+        List<Long> result = new ArrayList<>();
+        for (String value : values.split(",")) {
+            String[] range = value.trim().split("\\.\\.");
+            long from = Long.parseLong(range[0].trim());
+            long to = range.length > 1 ? Long.parseLong(range[1].trim()) : from;
+            for (long i = from; i <= to; i++) {
+                result.add(i);
+            }
+        }
+        return result;
+    }
+
+    private static List<Double> parseDoubleValues(String values) {
+        List<Double> result = new ArrayList<>();
+        for (String value : values.split(",")) {
+            result.add(Double.parseDouble(value.trim()));
+        }
+        return result;
+    }
+
     private static String setupDataDirectory(String[] args) throws URISyntaxException {
         if(args.length != 1){
             System.out.println("The path to the data directory needs to be specified as program argument");
@@ -159,6 +455,260 @@ public class Main {
         }
     }
 
+    /**
+     * trains the sweep configurations on the training data that is read and encoded only once
+     */
+    private static void runSweep(String dataDirectoryPath) {
+        String trainingFileName = dataDirectoryPath + "/input/" + DATA_FILE_NAME;
+        log.info("Reading test data file(" + trainingFileName + ") for the sweep...");
+        final RegisterCsvData trainingCsvData = csvReader.read(trainingFileName);
+
+        // the rows are shuffled per configuration, so the filtered rows are remembered instead of removed
+        List<String[]> csvLines = trainingCsvData.getCsvData();
+        int[] csvRowToEncodedRow = new int[csvLines.size()];
+        List<String[]> keptLines = new ArrayList<>();
+        for (int i = 0; i < csvLines.size(); i++) {
+            if (shouldRemoveTrainingData(csvLines.get(i))) {
+                csvRowToEncodedRow[i] = -1;
+            } else {
+                csvRowToEncodedRow[i] = keptLines.size();
+                keptLines.add(csvLines.get(i));
+            }
+        }
+        log.info("Filtered " + (csvLines.size() - keptLines.size()) + " samples of " + csvLines.size() + " total samples.");
+        trainingCsvData.setCsvData(keptLines);
+
+        List<HyperParameterSweep.Configuration> configurations = HyperParameterSweep.combinations(SWEEP_ANN_SEEDS,
+                SWEEP_SHUFFLE_SEEDS, SWEEP_EPOCHS, SWEEP_HIDDEN_LAYER_SIZES, SWEEP_LEARNING_RATES);
+        int threads = SWEEP_THREADS > 0 ? SWEEP_THREADS : Runtime.getRuntime().availableProcessors();
+        new HyperParameterSweep(deep4jNetwork, mapper.encode(trainingCsvData), csvRowToEncodedRow, TRAINING_DATA_SIZE)
+                .run(dataDirectoryPath, configurations, threads);
+    }
+
+    /**
+     * cross validates the configured ann on all rows of the training data, training.data.size is not used
+     */
+    private static void runCrossValidation(String dataDirectoryPath) {
+        EncodedRegisterData encodedTrainingData = readTrainingData(dataDirectoryPath);
+        int threads = CROSS_VALIDATION_THREADS > 0 ? CROSS_VALIDATION_THREADS : Runtime.getRuntime().availableProcessors();
+        new CrossValidation(deep4jNetwork, encodedTrainingData, CROSS_VALIDATION_FOLDS, CROSS_VALIDATION_REPETITIONS, SHUFFLE_SEED)
+                .run(dataDirectoryPath, SEED, HIDDEN_LAYER_SIZE, EPOCHS, LEARNING_RATE, threads);
+    }
+
+    /**
+     * fine-tunes the saved ann on the new rows of finetune.data.file, it is saved to output/model.nnet if it verifies
+     * at least as well as the saved ann
+     */
+    private static void runFineTuning(String dataDirectoryPath) throws IOException {
+        if (FINE_TUNING_FILE_NAME.isEmpty()) {
+            throw new IllegalArgumentException("finetune.data.file is not set");
+        }
+        EncodedRegisterData encodedTrainingData = readTrainingData(dataDirectoryPath);
+        int trainingDataSize = getTrainingSize(encodedTrainingData.size());
+        DataNormalization normalizer = deep4jNetwork.loadSavedNormalizer(dataDirectoryPath);
+        if (normalizer == null) {
+            normalizer = NeuronalNetwork.fitNormalizer(encodedTrainingData.toDataSet(0, trainingDataSize, VAS_VALUE_COUNT));
+        }
+
+        String newFileName = dataDirectoryPath + "/input/" + FINE_TUNING_FILE_NAME;
+        log.info("Reading new training data file(" + newFileName + ") for fine-tuning...");
+        RegisterCsvData newCsvData = csvReader.read(newFileName);
+        Collections.shuffle(newCsvData.getCsvData(), new Random(SHUFFLE_SEED));
+        filterTrainingData(newCsvData);
+
+        int verificationStart = TRAINING_DATA_SIZE < 0 ? 0 : trainingDataSize;
+        new FineTuning(deep4jNetwork, normalizer).run(dataDirectoryPath, encodedTrainingData, verificationStart,
+                mapper.encode(newCsvData), FINE_TUNING_VERIFICATION_ROWS, FINE_TUNING_REPLAY_ROWS, FINE_TUNING_EPOCHS,
+                FINE_TUNING_LEARNING_RATE, SEED);
+    }
+
+    /**
+     * reads, shuffles, filters and encodes the training data, or loads the encoded data of a previous run from the cache
+     */
+    private static EncodedRegisterData readTrainingData(String dataDirectoryPath) {
+        String trainingFileName = dataDirectoryPath + "/input/" + DATA_FILE_NAME;
+        File cacheFile = new File(dataDirectoryPath + "/temp/" + DATA_FILE_NAME + ".cache");
+        String cacheKey = null;
+        if (isCacheEnabled()) {
+            cacheKey = dataCache.cacheKey(trainingFileName, "training", String.valueOf(SHUFFLE_SEED),
+                    String.valueOf(FILTER_UNKNOWN), String.valueOf(FILTER_DUPLICATES));
+            EncodedRegisterData cachedData = dataCache.load(cacheFile, cacheKey);
+            if (cachedData != null) {
+                return cachedData;
+            }
+        }
+
+        log.info("Reading test data file(" + trainingFileName + ") for training and verification...");
+        RegisterCsvData trainingCsvData = METRICS.time("read.training", () -> csvReader.read(trainingFileName));
+        Collections.shuffle(trainingCsvData.getCsvData(), new Random(SHUFFLE_SEED));
+        filterTrainingData(trainingCsvData);
+        if (WRITE_TEMP_FILES || !IN_MEMORY_PIPELINE) {
+            csvWriter.write(mapper.transform(trainingCsvData), TRAINING_DATA_SIZE,
+                    dataDirectoryPath + "/temp/train_data.csv",
+                    dataDirectoryPath + "/temp/verification_data.csv");
+        }
+
+        EncodedRegisterData encodedData = METRICS.time("encode.training", () -> mapper.encode(trainingCsvData));
+        if (isCacheEnabled()) {
+            dataCache.write(cacheFile, cacheKey, encodedData);
+        }
+        return encodedData;
+    }
+
+    /**
+     * reads, filters and encodes the register data, or loads the encoded data of a previous run from the cache
+     */
+    private static EncodedRegisterData readRegisterData(String dataDirectoryPath) {
+        String registerFileName = dataDirectoryPath + "/input/" + REGISTER_FILE_NAME;
+        File cacheFile = new File(dataDirectoryPath + "/temp/" + REGISTER_FILE_NAME + ".cache");
+        String cacheKey = null;
+        if (isCacheEnabled()) {
+            cacheKey = dataCache.cacheKey(registerFileName, "register", String.valueOf(FILTER_DUPLICATES));
+            EncodedRegisterData cachedData = dataCache.load(cacheFile, cacheKey);
+            if (cachedData != null) {
+                return cachedData;
+            }
+        }
+
+        log.info("Reading register data file(" + registerFileName + ") to classify with ann...");
+        RegisterCsvData registerCsvData = METRICS.time("read.register", () -> csvReader.read(registerFileName));
+        filterRegisterData(registerCsvData);
+        if (WRITE_TEMP_FILES || !IN_MEMORY_PIPELINE) {
+            csvWriter.write(mapper.transform(registerCsvData), dataDirectoryPath + "/temp/register_data.csv");
+        }
+
+        EncodedRegisterData encodedData = METRICS.time("encode.register", () -> mapper.encode(registerCsvData));
+        if (isCacheEnabled()) {
+            dataCache.write(cacheFile, cacheKey, encodedData);
+        }
+        return encodedData;
+    }
+
+    private static boolean isCacheEnabled() {
+        // the temp csv files are only written when the csv files are read
+        return CACHE_ENCODED_DATA && IN_MEMORY_PIPELINE && !WRITE_TEMP_FILES;
+    }
+
+    /**
+     * scores the register file chunk by chunk with the saved ann, so the memory usage does not grow with the register size.
+     * With register.incremental=true only the cases that are new or changed since the last run are calculated, with
+     * register.pipelined=true the chunks are read, calculated and written by a {@link PipelinedRegisterScorer}.
+     */
+    private static void scoreRegisterInChunks(String dataDirectoryPath, DataNormalization normalizer) {
+        String registerFileName = dataDirectoryPath + "/input/" + REGISTER_FILE_NAME;
+        int chunkSize = REGISTER_CHUNK_SIZE > 0 ? REGISTER_CHUNK_SIZE : 10000;
+        log.info("Scoring register data file(" + registerFileName + ") in chunks of " + chunkSize + " rows with ann...");
+        // the state belongs to the calculated register file, so every output file keeps the cases of its own register
+        File stateFile = new File(dataDirectoryPath + "/output/" + OUTPUT_FILE_NAME + ".state");
+        RegisterScoringState state = INCREMENTAL_SCORING
+                ? RegisterScoringState.load(stateFile, modelKey(dataDirectoryPath, normalizer)) : null;
+        String[] registerHeader = csvReader.readHeader(registerFileName);
+        int[] rowCounts = new int[2];
+        if (PIPELINED_SCORING && state != null) {
+            log.warn("Incremental scoring is not pipelined, register.pipelined is ignored");
+        }
+        Metrics.Timer timer = METRICS.time("score.register");
+        try (StreamingRegisterScorer scorer = deep4jNetwork.openStreamingScorer(dataDirectoryPath, normalizer, registerHeader);
+             PipelinedRegisterScorer pipeline = PIPELINED_SCORING && state == null ? new PipelinedRegisterScorer(scorer) : null) {
+            csvReader.read(registerFileName, chunkSize, chunk -> {
+                rowCounts[0] += chunk.getCsvData().size();
+                rowCounts[1] += removeUnusableRegisterRows(chunk);
+                if (chunk.getCsvData().isEmpty()) {
+                    return;
+                }
+                DataSet registerData = mapper.toDataSet(chunk, 0, chunk.getCsvData().size(), VAS_VALUE_COUNT);
+                if (pipeline != null) {
+                    pipeline.submit(registerData, getCaseIds(chunk));
+                } else if (state == null) {
+                    scorer.score(registerData, getCaseIds(chunk));
+                } else {
+                    scoreIncrementally(scorer, state, chunk, registerData);
+                }
+            });
+            if (pipeline != null) {
+                pipeline.finish();
+            }
+            log.info("Filtered " + rowCounts[1] + " row(s) of " + rowCounts[0] + " total register rows.");
+            if (state != null) {
+                log.info("Calculated the " + state);
+                state.write(stateFile);
+            }
+            if (scorer.getPredictionCache() != null) {
+                log.info("Scored the register with " + scorer.getPredictionCache());
+            }
+            log.info("Wrote " + scorer.getScoredRows() + " ann calculated vas values as column 'vas_score_ann' to: "
+                    + dataDirectoryPath + "/output/" + OUTPUT_FILE_NAME);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    private static void scoreIncrementally(StreamingRegisterScorer scorer, RegisterScoringState state, RegisterCsvData chunk, DataSet registerData) {
+        FeatureEncoder encoder = FeatureEncoder.forHeader(chunk.getHeader());
+        String[] caseIds = getCaseIds(chunk);
+        long[] patterns = new long[caseIds.length];
+        int[] vasCodes = new int[caseIds.length];
+        for (int i = 0; i < caseIds.length; i++) {
+            patterns[i] = encoder.pattern(chunk.getCsvData().get(i));
+            vasCodes[i] = state.getVasCode(caseIds[i], patterns[i]);
+        }
+        scorer.score(registerData, caseIds, vasCodes);
+        for (int i = 0; i < caseIds.length; i++) {
+            state.put(caseIds[i], patterns[i], vasCodes[i]);
+        }
+    }
+
+    /**
+     * @return the hash of the saved ann file and the normalizer, the calculated vas values change when the key changes
+     */
+    private static String modelKey(String dataDirectoryPath, DataNormalization normalizer) {
+        return dataCache.cacheKey(dataDirectoryPath + "/ann/" + ANN_FILE_NAME, NeuronalNetwork.describeNormalizer(normalizer));
+    }
+
+    /**
+     * exports the saved ann and its normalizer to a compact ann and checks its output on the register data
+     */
+    private static void exportCompactAnn(String dataDirectoryPath) throws IOException {
+        // the quantized compact ann is compared with the ann on the verification data
+        EncodedRegisterData encodedTrainingData = readTrainingData(dataDirectoryPath);
+        int trainingDataSize = getTrainingSize(encodedTrainingData.size());
+        DataNormalization normalizer = deep4jNetwork.loadSavedNormalizer(dataDirectoryPath);
+        if (normalizer == null) {
+            normalizer = NeuronalNetwork.fitNormalizer(encodedTrainingData.toDataSet(0, trainingDataSize, VAS_VALUE_COUNT));
+        }
+        int verificationStart = TRAINING_DATA_SIZE < 0 ? 0 : trainingDataSize;
+        EncodedRegisterData encodedRegisterData = readRegisterData(dataDirectoryPath);
+        deep4jNetwork.exportCompactNetwork(dataDirectoryPath, normalizer,
+                encodedTrainingData.toDataSet(verificationStart, encodedTrainingData.size(), VAS_VALUE_COUNT),
+                encodedRegisterData.toDataSet(0, encodedRegisterData.size(), VAS_VALUE_COUNT));
+    }
+
+    /**
+     * scores the register file chunk by chunk with the compact ann ann.compact.file.name
+     */
+    private static void scoreRegisterWithCompactAnn(String dataDirectoryPath) {
+        String registerFileName = dataDirectoryPath + "/input/" + REGISTER_FILE_NAME;
+        File compactAnnFile = new File(dataDirectoryPath + "/ann/" + COMPACT_ANN_FILE_NAME);
+        log.info("Scoring register data file(" + registerFileName + ") with compact ann " + compactAnnFile + "...");
+        int chunkSize = REGISTER_CHUNK_SIZE > 0 ? REGISTER_CHUNK_SIZE : 10000;
+        int[] rowCounts = new int[2];
+        try (CompactRegisterScorer scorer = new CompactRegisterScorer(CompactNetwork.load(compactAnnFile), QUANTIZED_COMPACT_ANN,
+                new File(dataDirectoryPath + "/output/" + OUTPUT_FILE_NAME))) {
+            csvReader.read(registerFileName, chunkSize, chunk -> {
+                rowCounts[0] += chunk.getCsvData().size();
+                rowCounts[1] += removeUnusableRegisterRows(chunk);
+                scorer.score(chunk);
+            });
+            log.info("Filtered " + rowCounts[1] + " row(s) of " + rowCounts[0] + " total register rows.");
+            log.info("Wrote " + scorer.getScoredRows() + " ann calculated vas values as column 'vas_score_ann' to: "
+                    + dataDirectoryPath + "/output/" + OUTPUT_FILE_NAME);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     private static int getTrainingSize(int verificationDataSize) {
         return TRAINING_DATA_SIZE < 0 ? verificationDataSize : TRAINING_DATA_SIZE;
     }
@@ -174,13 +724,18 @@ public class Main {
     }
 
     private static void filterRegisterData(RegisterCsvData csvData) {
+        int totalCases = csvData.getCsvData().size();
+        int filteredCases = removeUnusableRegisterRows(csvData);
+        log.info("Filtered " + filteredCases + " row(s) of " + totalCases + " total register rows.");
+    }
+
+    private static int removeUnusableRegisterRows(RegisterCsvData csvData) {
         List<String[]> csvLines = csvData.getCsvData();
         int totalCases = csvLines.size();
         csvData.setCsvData(csvLines.stream()
                 .filter(csvLine1 -> !shouldRemoveRegisterData(csvLine1))
                 .collect(Collectors.toList()));
-        int filteredCases = totalCases - csvData.getCsvData().size();
-        log.info("Filtered " + filteredCases + " row(s) of " + totalCases + " total register rows.");
+        return totalCases - csvData.getCsvData().size();
     }
 
     private static boolean shouldRemoveTrainingData(String[] csvLine) {
@@ -196,7 +751,7 @@ public class Main {
         return vasValue < MIN_VAS_VALUE;
     }
 
-    private static boolean shouldRemoveRegisterData(String[] csvLine) {
+    static boolean shouldRemoveRegisterData(String[] csvLine) {
         // set some default VAS value that is later overwritten by the ann
         csvLine[csvLine.length - 1] = "0";
         List<String> rowValues = asList(csvLine);
@@ -210,57 +765,36 @@ public class Main {
         return false;
     }
 
-    private static Map<String, Pair<String, Integer>> createCaseIdMap(RegisterCsvData csvData) {
-        Map<String, Pair<String, Integer>> lineNumberToCaseId = new HashMap<>();
+    private static String[] getCaseIds(RegisterCsvData csvData) {
         List<String[]> csvLines = csvData.getCsvData();
-        int vasIndex = csvLines.get(0).length - 1;
-
-        for (int i = 0; i < csvLines.size(); i++) {
-            String[] csvLine = csvLines.get(i);
-            List<String> answers = new ArrayList<>(asList(csvLine));
-            String answersAsKey = toAnswerHashKey(answers);
-            Pair<String, Integer> pair = Pair.of(csvLine[0], Integer.parseInt(csvLine[vasIndex]));
-            lineNumberToCaseId.put(answersAsKey, pair);
+        String[] caseIds = new String[csvLines.size()];
+        for (int i = 0; i < caseIds.length; i++) {
+            caseIds[i] = csvLines.get(i)[0];
         }
-
-        return lineNumberToCaseId;
+        return caseIds;
     }
 
-    private static Map<Integer, String> createRowToCaseIdMap(RegisterCsvData csvData) {
-        Map<Integer, String> createRowToCaseIdMap = new HashMap<>();
+    /**
+     * prints the answers and VAS values of every answer pattern of the csv data with more than one row
+     */
+    public static void printStats(RegisterCsvData csvData) {
+        SymptomPatternIndex patternIndex = new SymptomPatternIndex(csvData.getHeader());
+        int vasIndex = csvData.getHeader().length - 1;
         List<String[]> csvLines = csvData.getCsvData();
         for (int i = 0; i < csvLines.size(); i++) {
             String[] csvLine = csvLines.get(i);
-            createRowToCaseIdMap.put(i, csvLine[0]);
+            patternIndex.add(patternIndex.pattern(csvLine), SymptomPatternIndex.vasValue(csvLine[vasIndex]), i);
         }
-
-        return createRowToCaseIdMap;
-    }
-
-    public static String toAnswerHashKey(List<String> dataSample) {
-        dataSample.remove(dataSample.size() - 1);
-        dataSample.remove(0);
-        return String.join(",", dataSample);
-    }
-
-    public static void printStats(RegisterCsvData transformed, int vasIndex) {
-        Map<String, List<Integer>> vasGroups = new HashMap<>();
-
-        for (String[] csvDatum : transformed.getCsvData()) {
-            StringBuilder stringBuilder = new StringBuilder();
-            for (int i = 0; i < csvDatum.length; i++) {
-                if (i != 0 || i != csvDatum.length - 1) {
-                    stringBuilder.append(csvDatum[i]);
+        String[] answers = new String[patternIndex.featureCount()];
+        for (long pattern : patternIndex.patterns()) {
+            if (patternIndex.rowCount(pattern) > 1) {
+                List<Integer> vasValues = new ArrayList<>();
+                for (int vas = 0; vas < SymptomPatternIndex.NO_VAS_VALUE; vas++) {
+                    vasValues.addAll(Collections.nCopies(patternIndex.vasCount(pattern, vas), vas));
                 }
-            }
-            String hashedData = stringBuilder.toString();
-            List<Integer> vasValues = vasGroups.computeIfAbsent(hashedData, k -> new ArrayList<>());
-            vasValues.add(Integer.valueOf(csvDatum[vasIndex]));
-        }
-        for (Map.Entry<String, List<Integer>> entry : vasGroups.entrySet()) {
-            if (entry.getValue().size() > 1) {
-                System.out.println(entry.getKey());
-                System.out.println(entry.getValue());
+                patternIndex.decode(pattern, answers);
+                System.out.println(String.join(",", answers));
+                System.out.println(vasValues);
                 System.out.println();
             }
         }
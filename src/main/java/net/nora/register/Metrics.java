@@ -0,0 +1,239 @@
+package net.nora.register;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import org.bytedeco.javacpp.Pointer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.Supplier;
+
+/**
+ * Registry of the training and pipeline metrics: counters, whose rate per second is derived between two snapshots,
+ * gauges with the last recorded value and the duration of the pipeline phases.
+ * <p>
+ * Recording is always on and cheap, only the {@link MetricsListener} records nothing until the metrics are started.
+ * When started, a snapshot of all metrics and the heap and off-heap memory is
+ * appended to data/output/metrics.csv and written to data/output/metrics.json every interval, and the metrics are
+ * registered as the MBean {@value #OBJECT_NAME}.
+ */
+class Metrics {
+
+    private static Logger log = LoggerFactory.getLogger(Metrics.class);
+
+    static final String OBJECT_NAME = "net.nora.register:type=Metrics";
+
+    private final Map<String, DoubleAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, Double> gauges = new ConcurrentHashMap<>();
+    private final Map<String, Double> previousCounters = new ConcurrentHashMap<>();
+    // the rates of the last snapshot, exposed over jmx and in the json file
+    private volatile Map<String, Double> lastSnapshot = new TreeMap<>();
+    private long previousSnapshotNanos = System.nanoTime();
+
+    private volatile boolean started;
+    private ScheduledExecutorService scheduler;
+    private File csvFile;
+    private File jsonFile;
+
+    void increment(String name, double value) {
+        counters.computeIfAbsent(name, k -> new DoubleAdder()).add(value);
+    }
+
+    void set(String name, double value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * @return a timer that records its duration in milliseconds as gauge phase.&lt;name&gt;.millis when it is stopped
+     */
+    Timer time(String phase) {
+        return new Timer("phase." + phase + ".millis");
+    }
+
+    /**
+     * runs the task and records its duration like {@link #time(String)}
+     *
+     * @return the result of the task
+     */
+    <T> T time(String phase, Supplier<T> task) {
+        Timer timer = time(phase);
+        try {
+            return task.get();
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * @return whether the metrics are written, metrics that are expensive to take are only recorded then
+     */
+    boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * writes a snapshot every interval and registers the MBean
+     */
+    void start(String dataDirectoryPath, long intervalSeconds) {
+        csvFile = new File(dataDirectoryPath + "/output/metrics.csv");
+        jsonFile = new File(dataDirectoryPath + "/output/metrics.json");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(csvFile), StandardCharsets.UTF_8)) {
+            writer.write("time,name,value\n");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            log.warn("Could not register the metrics MBean", e);
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::writeSnapshot, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        // the last snapshot also holds the metrics of a run that exits before the first interval
+        Runtime.getRuntime().addShutdownHook(new Thread(this::writeSnapshot, "metrics-shutdown"));
+        started = true;
+        log.info("Writing metrics every " + intervalSeconds + "s to " + csvFile + " and " + jsonFile);
+    }
+
+    /**
+     * @return the counters, their rates per second since the last snapshot, the gauges and the memory usage
+     */
+    synchronized Map<String, Double> snapshot() {
+        long now = System.nanoTime();
+        double seconds = (now - previousSnapshotNanos) / 1e9;
+        previousSnapshotNanos = now;
+
+        Map<String, Double> snapshot = new TreeMap<>(gauges);
+        for (Map.Entry<String, DoubleAdder> counter : counters.entrySet()) {
+            double value = counter.getValue().sum();
+            double previous = previousCounters.getOrDefault(counter.getKey(), 0d);
+            previousCounters.put(counter.getKey(), value);
+            snapshot.put(counter.getKey(), value);
+            snapshot.put(counter.getKey() + ".per.second", seconds > 0 ? (value - previous) / seconds : 0);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        snapshot.put("memory.heap.used.bytes", (double) (runtime.totalMemory() - runtime.freeMemory()));
+        snapshot.put("memory.heap.max.bytes", (double) runtime.maxMemory());
+        // nd4j allocates its arrays and workspaces off heap through javacpp
+        snapshot.put("memory.offheap.used.bytes", (double) Pointer.totalBytes());
+        snapshot.put("memory.physical.bytes", (double) Pointer.physicalBytes());
+        lastSnapshot = snapshot;
+        return snapshot;
+    }
+
+    private synchronized void writeSnapshot() {
+        try {
+            Map<String, Double> snapshot = snapshot();
+            long time = System.currentTimeMillis();
+            StringBuilder csv = new StringBuilder();
+            JsonObject json = new JsonObject();
+            json.addProperty("time", time);
+            for (Map.Entry<String, Double> metric : snapshot.entrySet()) {
+                csv.append(time).append(',').append(metric.getKey()).append(',').append(metric.getValue()).append('\n');
+                json.addProperty(metric.getKey(), metric.getValue());
+            }
+            Files.write(csvFile.toPath(), csv.toString().getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+            File tempFile = new File(jsonFile.getPath() + ".tmp");
+            Files.write(tempFile.toPath(), new GsonBuilder().setPrettyPrinting().create().toJson(json)
+                    .getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile.toPath(), jsonFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not write the metrics", e);
+        }
+    }
+
+    /**
+     * records the time from its creation until it is stopped
+     */
+    class Timer {
+        private final String name;
+        private final long start = System.nanoTime();
+
+        private Timer(String name) {
+            this.name = name;
+        }
+
+        void stop() {
+            double millis = (System.nanoTime() - start) / 1e6;
+            set(name, millis);
+            log.info(name + ": " + String.format("%.1f", millis));
+        }
+    }
+
+    /**
+     * exposes the metrics of the last snapshot as read only attributes
+     */
+    private class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) {
+            return lastSnapshot.get(attribute);
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("The metrics are read only");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Double> snapshot = lastSnapshot;
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+            int i = 0;
+            for (String name : snapshot.keySet()) {
+                attributes[i++] = new MBeanAttributeInfo(name, Double.class.getName(), name, true, false, false);
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Training and pipeline metrics", attributes, null, null, null);
+        }
+    }
+}
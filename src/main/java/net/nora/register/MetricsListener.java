@@ -0,0 +1,30 @@
+package net.nora.register;
+
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.optimize.api.BaseTrainingListener;
+
+/**
+ * Records the iterations, trained samples, score and fit time of a model in the {@link Metrics}, once they are started.
+ */
+class MetricsListener extends BaseTrainingListener {
+
+    private final Metrics metrics;
+    private long lastIterationNanos = System.nanoTime();
+
+    MetricsListener(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void iterationDone(Model model, int iteration, int epoch) {
+        if (!metrics.isStarted()) {
+            return;
+        }
+        long now = System.nanoTime();
+        metrics.set("training.fit.millis", (now - lastIterationNanos) / 1e6);
+        lastIterationNanos = now;
+        metrics.increment("training.iterations", 1);
+        metrics.increment("training.samples", model.batchSize());
+        metrics.set("training.score", model.score());
+    }
+}
@@ -1,5 +1,10 @@
 package net.nora.register;
 
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.nio.ByteBuffer;
 import java.util.*;
 
 class NetworkDataMapper {
@@ -17,16 +22,12 @@ class NetworkDataMapper {
     }
 
     void insertData(int[] output, int bitCount, int offest, int value) {
-        String binaryValue = Integer.toBinaryString(value);
-        if (bitCount < binaryValue.length()) {
+        if (bitCount < 32 - Integer.numberOfLeadingZeros(value)) {
             throw new RuntimeException("value: " + value + " does not fit into " + bitCount + " bits");
         }
-        // prepend leading zeros
-        while (binaryValue.length() < bitCount) {
-            binaryValue = "0" + binaryValue;
-        }
+        // most significant bit first, including the leading zeros
         for (int i = 0; i < bitCount; i++) {
-            output[offest + i] = Integer.parseInt(String.valueOf(binaryValue.charAt(i)));
+            output[offest + i] = (value >>> (bitCount - 1 - i)) & 1;
         }
     }
 
@@ -51,9 +52,53 @@ class NetworkDataMapper {
         return data;
     }
 
+    /**
+     * encodes the raw csv rows [from, to) directly into the features and one hot encoded labels of the network,
+     * so the data does not need to be transformed to strings and parsed from the temp csv files again
+     */
+    DataSet toDataSet(RegisterCsvData csvData, int from, int to, int numClasses) {
+        FeatureEncoder encoder = FeatureEncoder.forHeader(csvData.getHeader());
+        List<String[]> rows = csvData.getCsvData().subList(from, to);
+        int rowCount = rows.size();
+        int featureCount = encoder.featureCount();
+        float[] features = new float[rowCount * featureCount];
+        float[] labels = new float[rowCount * numClasses];
+
+        for (int i = 0; i < rowCount; i++) {
+            int label = encoder.encode(rows.get(i), features, i * featureCount);
+            labels[i * numClasses + label] = 1f;
+        }
+
+        INDArray featureMatrix = Nd4j.create(features, new int[]{rowCount, featureCount}, 'c');
+        INDArray labelMatrix = Nd4j.create(labels, new int[]{rowCount, numClasses}, 'c');
+        return new DataSet(featureMatrix, labelMatrix);
+    }
+
+    /**
+     * encodes the raw csv rows to their dictionary codes, the first column of every row is kept as case id
+     */
+    EncodedRegisterData encode(RegisterCsvData csvData) {
+        FeatureEncoder encoder = FeatureEncoder.forHeader(csvData.getHeader());
+        List<String[]> rows = csvData.getCsvData();
+        int featureCount = encoder.featureCount();
+        String[] caseIds = new String[rows.size()];
+        byte[] labels = new byte[rows.size()];
+        byte[] features = new byte[rows.size() * featureCount];
+
+        for (int i = 0; i < rows.size(); i++) {
+            String[] row = rows.get(i);
+            caseIds[i] = row[0];
+            labels[i] = (byte) encoder.encode(row, features, i * featureCount);
+        }
+        return new EncodedRegisterData(csvData.getHeader(), featureCount, caseIds, ByteBuffer.wrap(labels), ByteBuffer.wrap(features));
+    }
+
     private String[] transform(String[] csvLine, String[] header) {
         // remove case_id
         String[] transformed = Arrays.copyOfRange(csvLine, 1, csvLine.length);
+        for (int i = 0; i < transformed.length; i++) {
+            transformed[i] = FeatureEncoder.dictionaryValue(header[i + 1], transformed[i]);
+        }
 
         // switch position of VAS value (output) with last column
         int vasIndex = determineHeaderIndex(header, Main.OUTPUT_HEADER_NAME) - 1;
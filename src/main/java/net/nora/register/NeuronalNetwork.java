@@ -1,12 +1,11 @@
 package net.nora.register;
 
-import com.opencsv.CSVWriter;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.tuple.Pair;
 import org.datavec.api.records.reader.RecordReader;
 import org.datavec.api.records.reader.impl.csv.CSVRecordReader;
 import org.datavec.api.split.FileSplit;
 import org.deeplearning4j.datasets.datavec.RecordReaderDataSetIterator;
+import org.deeplearning4j.datasets.iterator.impl.ListDataSetIterator;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
 import org.deeplearning4j.nn.conf.layers.DenseLayer;
@@ -14,6 +13,7 @@ import org.deeplearning4j.nn.conf.layers.OutputLayer;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.nn.weights.WeightInit;
 import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
+import org.deeplearning4j.util.ModelSerializer;
 import org.nd4j.evaluation.classification.Evaluation;
 import org.nd4j.linalg.activations.Activation;
 import org.nd4j.linalg.api.ndarray.INDArray;
@@ -21,14 +21,18 @@ import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
 import org.nd4j.linalg.dataset.api.preprocessor.NormalizerStandardize;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.INDArrayIndex;
+import org.nd4j.linalg.indexing.NDArrayIndex;
 import org.nd4j.linalg.io.ClassPathResource;
 import org.nd4j.linalg.learning.config.Sgd;
+import org.nd4j.linalg.lossfunctions.ILossFunction;
 import org.nd4j.linalg.lossfunctions.LossFunctions;
+import org.nd4j.linalg.lossfunctions.impl.LossNegativeLogLikelihood;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
@@ -40,351 +44,536 @@ public class NeuronalNetwork {
 
     private boolean printVasDistribution = false;
 
-    private static Map<Integer, String> yesNo = readEnumCSV("/dictionary/no_yes_answers.csv");
-    private static Map<Integer, String> yesNoUnknown = readEnumCSV("/dictionary/no_yes_unknown_answers.csv");
-    private static Map<Integer, String> elicitors = readEnumCSV("/dictionary/elicitors.csv");
-    private static Map<Integer, String> vas = readEnumCSV("/dictionary/vas.csv");
+    static final String[] OUTPUT_CSV_HEADER = new String[]{"case_id",
+            "skin",
+            "q_111_angioedema",
+            "pharynx_larynx",
+            "abdomin",
+            "nausea",
+            "vomiting",
+            "diarrhoea",
+            "incontinence",
+            "dyspnea",
+            "chest_tightness_v5",
+            "cough_v5",
+            "wheezing_expiratory_distre",
+            "stridor_inspiratory",
+            "respiratory_arrest",
+            "hypotension_collapse_v5",
+            "dizziness",
+            "tachycardia",
+            "palpitations_cardiac_arryt",
+            "chest_pain_angina_v5",
+            "reductions_of_alertness",
+            "loss_of_consciousness",
+            "cardiac_arrest",
+            "kind",
+            "d_elicitor_gr5",
+            "actual_vas_score",
+            "vas_score_ann"};
+
+    private static final double COMPACT_NETWORK_TOLERANCE = 1e-4;
+    // the decayed learning rate is lowered every LEARNING_RATE_DECAY_EPOCHS epochs, but not below MIN_DECAYED_LEARNING_RATE
+    private static final int LEARNING_RATE_DECAY_EPOCHS = 25000;
+    private static final double LEARNING_RATE_DECAY = 0.05;
+    private static final double MIN_DECAYED_LEARNING_RATE = 0.05;
+
     private int vasValues;
 
     public NeuronalNetwork(int vasValues) {
         this.vasValues = vasValues;
     }
 
-    void run(String dataDirectoryPath, int trainingDataSize, int verificationDataSize, int vasIndex, Map<String, Pair<String, Integer>> answersToCaseId, Map<Integer, String> finalRegisterRowNumberToCaseId) {
-        log.info("vasIndex: " + vasIndex);
-        log.info("trainingDataSize: " + trainingDataSize);
-        log.info("verificationDataSize: " + verificationDataSize);
+    void run(String dataDirectoryPath, DataSet trainingData, DataSet verificationDataNormalized, String[] verificationCaseIds, int[] verificationVasValues, String[] trainingHeader, DataSet registerDataNormalized, String[] registerCaseIds, FeatureEncoder registerEncoder) {
+        log.info("trainingDataSize: " + trainingData.numExamples());
+        log.info("verificationDataSize: " + verificationDataNormalized.numExamples());
+        log.info("registerDataSize: " + registerDataNormalized.numExamples());
         try {
-            //Second: the RecordReaderDataSetIterator handles conversion to DataSet objects, ready for use in neural network
-            //11 classes (types of vas) in the vas data set. Vas values have integer values 0 to 10
-
-            //VAS training data set: We are loading all of them into one DataSet
-            DataSet trainingData = readCSVDataset(
-                    dataDirectoryPath + "/temp/train_data.csv",
-                    trainingDataSize, vasIndex, vasValues);
-
-            // this is the data we want to classify for verification
-            DataSet verificationDataNormalized = readCSVDataset(dataDirectoryPath + "/temp/verification_data.csv",
-                    verificationDataSize, vasIndex, vasValues);
-
-            // make the data model for records prior to normalization, because it changes the data.
-            Map<Integer, Map<String, Object>> verificationDataRaw = makeRegisterForTesting(verificationDataNormalized);
-
-            // this is the data we want to classify for the first time with the trained nnn
-            DataSet registerDataNormalized = readCSVDataset(dataDirectoryPath + "/temp/register_data.csv",
-                    7600, vasIndex, vasValues);
-            Map<Integer, Map<String, Object>> registerDataRaw = makeRegisterForTesting(registerDataNormalized);
+            // keep the feature codes of the cases prior to normalization, because it changes the data.
+            ScoredCases verificationCases = ScoredCases.of(verificationDataNormalized.getFeatures(), FeatureEncoder.forHeader(trainingHeader));
+            ScoredCases registerCases = ScoredCases.of(registerDataNormalized.getFeatures(), registerEncoder);
 
             //We need to normalize our data. We'll use NormalizeStandardize (which gives us mean 0, unit variance):
-            DataNormalization normalizer = new NormalizerStandardize();
-            normalizer.fit(trainingData);           //Collect the statistics (mean/stdev) from the training data. This does not modify the input data
+            DataNormalization normalizer = fitNormalizer(trainingData);
+            if (Main.COLLAPSE_DUPLICATES) {
+                trainingData = collapseDuplicates(trainingData, trainingHeader);
+            }
             normalizer.transform(trainingData);     //Apply normalization to the training data
             normalizer.transform(verificationDataNormalized);         //Apply normalization to the test data. This is using statistics calculated from the *training* set
             normalizer.transform(registerDataNormalized);     //Apply normalization to the register data
 
             //Configure neural network
-            final int numInputs = 24;
-            int outputNum = vasValues;
             int epochs = Main.EPOCHS;
-            double learningRate = 0.6;
+            double learningRate = Main.LEARNING_RATE;
             long seed = Main.SEED;
             log.info("model seed: {}", seed);
 
             final MultiLayerNetwork model;
             if(Main.LOAD_ANN_FROM_FILE){
-                log.info("Skipping training and load the model from file...");
-                File file = new File(dataDirectoryPath + "/ann/" + Main.ANN_FILE_NAME);
-                model = MultiLayerNetwork.load(file, false);
+                model = loadSavedModel(dataDirectoryPath);
             }else {
                 log.info("Build model....");
-                MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
-                        .seed(seed)
-                        .activation(Activation.TANH)
-                        .weightInit(WeightInit.XAVIER)
-                        .updater(new Sgd(learningRate))
-                        .l2(1e-4)
-                        .list()
-                        .layer(new DenseLayer.Builder()
-                                .nIn(numInputs)
-                                .nOut(33)
-                                .build())
-                        .layer(new DenseLayer
-                                .Builder()
-                                .nOut(33)
-                                .build())
-                        .layer(new OutputLayer.Builder(LossFunctions.LossFunction.NEGATIVELOGLIKELIHOOD)
-                                .activation(Activation.SOFTMAX)
-                                .nOut(outputNum).build())
-                        .build();
-
-                //run the model
-                model = new MultiLayerNetwork(conf);
-                model.init();
-                model.setListeners(new ScoreIterationListener(1000));
+                MultiLayerNetwork initialModel = buildModel(seed, Main.HIDDEN_LAYER_SIZE, learningRate);
 
                 log.info("Training model....");
-                for (int i = 0; i < epochs; i++) {
-                    if (i % 10000 == 0) {
-                        if(Main.EVALUATE_MODEL_DURING_TRAINING) {
-                            evaluateModel(verificationDataNormalized, model);
-                        }
-                    }
-                    if (i % 25000 == 0) {
-                        log.info("setting the learningRate from {} to {}", learningRate, learningRate -= 0.05);
-                        model.setLearningRate(learningRate);
-                    }
-
-                    model.fit(trainingData);
+                Metrics.Timer timer = Main.METRICS.time("training");
+                try (TrainingCheckpoints checkpoints = openCheckpoints(dataDirectoryPath, normalizer, trainingData.numExamples())) {
+                    model = train(initialModel, trainingData, verificationDataNormalized, epochs, learningRate, seed, true,
+                            checkpoints, Main.RESUME_TRAINING);
+                } finally {
+                    timer.stop();
                 }
 
                 log.info("Evaluating model....");
                 INDArray evaluationOutput = evaluateModel(verificationDataNormalized, model);
 
-                setFittedClassifiers(evaluationOutput, verificationDataRaw);
-                setCaseIdAndActualClassifiert(answersToCaseId, verificationDataRaw);
-                logCaseAsCsv(verificationDataRaw, dataDirectoryPath, "verification.csv");
-            }
-
-            log.info("Calculating vas for register....");
-            INDArray finalRegisterOutput = calculateModel(registerDataNormalized, model);
-            setFittedClassifiers(finalRegisterOutput, registerDataRaw);
-            setCaseIdOfFinalRegisterData(finalRegisterRowNumberToCaseId, registerDataRaw);
-            logCaseAsCsv(registerDataRaw, dataDirectoryPath, "ann_calculated.csv");
-            log.info("Wrote ann calculated vas values as column 'vas_score_ann' to: "
-                    + dataDirectoryPath + "/output/" + "ann_calculated.csv");
-
-            int[] vasDistribution = new int[11];
-            for (Map<String, Object> outputLine : registerDataRaw.values()) {
-                int vas_score_ann = Integer.parseInt(outputLine.get("vas_score_ann").toString());
-                vasDistribution[vas_score_ann] = vasDistribution[vas_score_ann] + 1;
+                verificationCases.setOutput(evaluationOutput);
+                verificationCases.setCaseIds(verificationCaseIds);
+                verificationCases.setActualVasValues(verificationVasValues);
+                verificationCases.write(new File(dataDirectoryPath + "/output/" + "verification.csv"));
             }
 
-            if(printVasDistribution){
-                for (int i = 0; i < vasDistribution.length; i++) {
-                    System.out.println(i + ": " + vasDistribution[i]);
-                }
-            }
+            calculateRegister(dataDirectoryPath, model, normalizer, registerDataNormalized, registerCases, registerCaseIds);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-            File file = new File(dataDirectoryPath + "/output/model.nnet");
-            model.save(file);
+    /**
+     * calculates the register with the saved ann and the normalizer that was saved with it, the training data is not needed
+     */
+    void runSaved(String dataDirectoryPath, DataNormalization normalizer, DataSet registerDataNormalized, String[] registerCaseIds, FeatureEncoder registerEncoder) {
+        log.info("registerDataSize: " + registerDataNormalized.numExamples());
+        try {
+            ScoredCases registerCases = ScoredCases.of(registerDataNormalized.getFeatures(), registerEncoder);
+            normalizer.transform(registerDataNormalized);
 
+            MultiLayerNetwork model = loadSavedModel(dataDirectoryPath);
+            calculateRegister(dataDirectoryPath, model, normalizer, registerDataNormalized, registerCases, registerCaseIds);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
         }
     }
 
-    private INDArray evaluateModel(DataSet testData, MultiLayerNetwork model) {
-        Evaluation eval = new Evaluation(Main.VAS_VALUE_COUNT);
-        INDArray output = model.output(testData.getFeatures());
+    private void calculateRegister(String dataDirectoryPath, MultiLayerNetwork model, DataNormalization normalizer, DataSet registerDataNormalized, ScoredCases registerCases, String[] registerCaseIds) throws IOException {
+        log.info("Calculating vas for register....");
+        INDArray finalRegisterOutput = Main.METRICS.time("score.register",
+                () -> calculateModel(registerDataNormalized, registerCases, model));
+        Main.METRICS.increment("score.rows", registerCases.size());
+        registerCases.setOutput(finalRegisterOutput);
+        registerCases.setCaseIds(registerCaseIds);
+        registerCases.write(new File(dataDirectoryPath + "/output/" + Main.OUTPUT_FILE_NAME));
+        log.info("Wrote ann calculated vas values as column 'vas_score_ann' to: "
+                + dataDirectoryPath + "/output/" + Main.OUTPUT_FILE_NAME);
+
+        int[] vasDistribution = new int[11];
+        for (int i = 0; i < registerCases.size(); i++) {
+            int vas_score_ann = Integer.parseInt(FeatureEncoder.decodeVas(registerCases.getVasCode(i)));
+            vasDistribution[vas_score_ann] = vasDistribution[vas_score_ann] + 1;
+        }
 
-        eval.eval(testData.getLabels(), output);
-        log.info(eval.stats());
-        return output;
-    }
+        if(printVasDistribution){
+            for (int i = 0; i < vasDistribution.length; i++) {
+                System.out.println(i + ": " + vasDistribution[i]);
+            }
+        }
 
-    private INDArray calculateModel(DataSet registerData, MultiLayerNetwork model) {
-        return model.output(registerData.getFeatures());
+        saveModel(model, normalizer, new File(dataDirectoryPath + "/output/model.nnet"));
     }
 
-    static void logCaseAsCsv(Map<Integer, Map<String, Object>> cases, String dataDirectoryPath, String fileName) {
-        String[] header = new String[]{"case_id",
-                "skin",
-                "q_111_angioedema",
-                "pharynx_larynx",
-                "abdomin",
-                "nausea",
-                "vomiting",
-                "diarrhoea",
-                "incontinence",
-                "dyspnea",
-                "chest_tightness_v5",
-                "cough_v5",
-                "wheezing_expiratory_distre",
-                "stridor_inspiratory",
-                "respiratory_arrest",
-                "hypotension_collapse_v5",
-                "dizziness",
-                "tachycardia",
-                "palpitations_cardiac_arryt",
-                "chest_pain_angina_v5",
-                "reductions_of_alertness",
-                "loss_of_consciousness",
-                "cardiac_arrest",
-                "kind",
-                "d_elicitor_gr5",
-                "actual_vas_score",
-                "vas_score_ann"};
-
-        List<String[]> csvOutputData = new ArrayList<>();
-        csvOutputData.add(header);
-        for (Map<String, Object> a : cases.values()) {
-            List<String> sample = sampleAsList(a);
-            sample.add("" + a.get("vas_score_ann"));
-            csvOutputData.add(sample.toArray(new String[0]));
+    /**
+     * @return the checkpoints of the training in output/checkpoints, or null if training.checkpoint.epochs,
+     * training.checkpoint.minutes and training.resume are not set
+     */
+    private TrainingCheckpoints openCheckpoints(String dataDirectoryPath, DataNormalization normalizer, int trainingRows) {
+        if (Main.CHECKPOINT_EPOCHS <= 0 && Main.CHECKPOINT_MINUTES <= 0 && !Main.RESUME_TRAINING) {
+            return null;
         }
-        writeCsvOutput(csvOutputData, dataDirectoryPath, fileName);
+        // the settings that change the trained model, the number of epochs can be raised for a resumed training
+        String configKey = "seed: " + Main.SEED + " hidden layer size: " + Main.HIDDEN_LAYER_SIZE
+                + " learning rate: " + Main.LEARNING_RATE + " training rows: " + trainingRows
+                + " batch size: " + Main.BATCH_SIZE + " workers: " + Main.TRAINING_WORKERS
+                + " averaging frequency: " + Main.AVERAGING_FREQUENCY + " " + describeNormalizer(normalizer);
+        return new TrainingCheckpoints(new File(dataDirectoryPath + "/output/checkpoints"), configKey, normalizer,
+                Main.CHECKPOINT_EPOCHS, Main.CHECKPOINT_MINUTES, Main.CHECKPOINT_KEEP);
     }
 
-    private static List<String> sampleAsList(Map<String, Object> verificationData) {
-        List<String> sample = new ArrayList<>();
-        sample.add("" + verificationData.get("case_id"));
-        sample.add("" + verificationData.get("skin"));
-        sample.add("" + verificationData.get("q_111_angioedema"));
-        sample.add("" + verificationData.get("pharynx_larynx"));
-        sample.add("" + verificationData.get("abdomin"));
-        sample.add("" + verificationData.get("nausea"));
-        sample.add("" + verificationData.get("vomiting"));
-        sample.add("" + verificationData.get("diarrhoea"));
-        sample.add("" + verificationData.get("incontinence"));
-        sample.add("" + verificationData.get("dyspnea"));
-        sample.add("" + verificationData.get("chest_tightness_v5"));
-        sample.add("" + verificationData.get("cough_v5"));
-        sample.add("" + verificationData.get("wheezing_expiratory_distre"));
-        sample.add("" + verificationData.get("stridor_inspiratory"));
-        sample.add("" + verificationData.get("respiratory_arrest"));
-        sample.add("" + verificationData.get("hypotension_collapse_v5"));
-        sample.add("" + verificationData.get("dizziness"));
-        sample.add("" + verificationData.get("tachycardia"));
-        sample.add("" + verificationData.get("palpitations_cardiac_arryt"));
-        sample.add("" + verificationData.get("chest_pain_angina_v5"));
-        sample.add("" + verificationData.get("reductions_of_alertness"));
-        sample.add("" + verificationData.get("loss_of_consciousness"));
-        sample.add("" + verificationData.get("cardiac_arrest"));
-        sample.add("" + verificationData.get("kind"));
-        sample.add("" + verificationData.get("d_elicitor_gr5"));
-        sample.add("" + verificationData.get("actual_vas_score"));
-        return sample;
+    MultiLayerNetwork buildModel(long seed, int hiddenLayerSize, double learningRate) {
+        final int numInputs = 24;
+        int outputNum = vasValues;
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .seed(seed)
+                .activation(Activation.TANH)
+                .weightInit(WeightInit.XAVIER)
+                .updater(new Sgd(learningRate))
+                .l2(1e-4)
+                .list()
+                .layer(new DenseLayer.Builder()
+                        .nIn(numInputs)
+                        .nOut(hiddenLayerSize)
+                        .build())
+                .layer(new DenseLayer
+                        .Builder()
+                        .nOut(hiddenLayerSize)
+                        .build())
+                .layer(new OutputLayer.Builder(outputLoss())
+                        .activation(Activation.SOFTMAX)
+                        .nOut(outputNum).build())
+                .build();
+
+        //run the model
+        MultiLayerNetwork model = new MultiLayerNetwork(conf);
+        model.init();
+        setTrainingListeners(model);
+        return model;
     }
 
-    private static void writeCsvOutput(List<String[]> csvOutputData, String dataDirectoryPath, String fileName) {
-        File outputFile = new File(dataDirectoryPath + "/output/" + fileName);
-        try (
-            FileWriter fileWriter = new FileWriter(outputFile)) {
-            CSVWriter writer = new CSVWriter(fileWriter, ',', CSVWriter.NO_QUOTE_CHARACTER);
-            writer.writeAll(csvOutputData);
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+    /**
+     * @return the negative log likelihood. With training.data.collapse.duplicate the labels count the rows per VAS value
+     * instead of being one hot, so the loss gets a weight of 1 per VAS value: with weights the softmax gradient of dl4j is
+     * output * sum(labels) - labels, without it is output - labels, which is only correct for labels that sum to 1.
+     */
+    private ILossFunction outputLoss() {
+        if (Main.COLLAPSE_DUPLICATES) {
+            return new LossNegativeLogLikelihood(Nd4j.ones(vasValues));
         }
+        return LossFunctions.LossFunction.NEGATIVELOGLIKELIHOOD.getILossFunction();
     }
 
-    private static void setFittedClassifiers(INDArray output, Map<Integer, Map<String, Object>> vasScores) {
-        for (int i = 0; i < output.rows(); i++) {
+    static void setTrainingListeners(MultiLayerNetwork model) {
+        model.setListeners(new ScoreIterationListener(1000), new MetricsListener(Main.METRICS));
+    }
 
-            // set the classification from the fitted results
-            vasScores.get(i).put("vas_score_ann",
-                    vas.get(maxIndex(getFloatArrayFromSlice(output.slice(i)))));
+    /**
+     * trains the model on the whole training data or on shuffled mini batches of training.batch.size rows per epoch.
+     * With early stopping the verification data is scored every training.early.stopping.interval epochs, the training
+     * stops when the score did not improve for training.early.stopping.patience checks and the best model is returned.
+     * With training.workers &gt; 1 the mini batches are trained with parameter averaging by a {@link ParallelTrainer}.
+     */
+    MultiLayerNetwork train(MultiLayerNetwork model, DataSet trainingData, DataSet verificationData, int epochs, double learningRate, long seed) {
+        return train(model, trainingData, verificationData, epochs, learningRate, seed, true);
+    }
+
+    /**
+     * @param decayLearningRate true to train the first 25000 epochs with the given learning rate and to lower it by 0.05
+     *                          every further 25000 epochs, but not below 0.05, false to train with the given learning rate
+     */
+    MultiLayerNetwork train(MultiLayerNetwork model, DataSet trainingData, DataSet verificationData, int epochs, double learningRate, long seed, boolean decayLearningRate) {
+        return train(model, trainingData, verificationData, epochs, learningRate, seed, decayLearningRate, null, false);
+    }
+
+    /**
+     * @param checkpoints the checkpoints of the training, or null to not write checkpoints
+     * @param resume      true to continue the training from the latest checkpoint, if there is one
+     */
+    private MultiLayerNetwork train(MultiLayerNetwork model, DataSet trainingData, DataSet verificationData, int epochs, double learningRate, long seed, boolean decayLearningRate, TrainingCheckpoints checkpoints, boolean resume) {
+        List<DataSet> trainingExamples = null;
+        if (Main.BATCH_SIZE > 0) {
+            trainingExamples = trainingData.asList();
+        }
+        Random random = new Random(seed);
+        int startEpoch = 0;
+        TrainingCheckpoints.Checkpoint checkpoint = resume ? checkpoints.loadLatest() : null;
+        if (checkpoint != null) {
+            model = checkpoint.model;
+            setTrainingListeners(model);
+            startEpoch = checkpoint.epoch;
+            learningRate = checkpoint.learningRate;
+            model.setLearningRate(learningRate);
+            // repeats the shuffles of the trained epochs, so the mini batches and the random state are the same
+            for (int i = 0; i < startEpoch && trainingExamples != null; i++) {
+                Collections.shuffle(trainingExamples, random);
+            }
+        }
+        ParallelTrainer parallelTrainer = null;
+        if (Main.TRAINING_WORKERS > 1) {
+            if (trainingExamples != null) {
+                parallelTrainer = new ParallelTrainer(model, Main.TRAINING_WORKERS, Main.AVERAGING_FREQUENCY, Main.PREFETCH_BUFFER);
+            } else {
+                log.warn("Parallel training needs mini batches, training.workers is ignored without training.batch.size");
+            }
+        }
+        try {
+            return train(model, trainingExamples, trainingData, verificationData, startEpoch, epochs, learningRate,
+                    decayLearningRate, random, parallelTrainer, checkpoints);
+        } finally {
+            if (parallelTrainer != null) {
+                parallelTrainer.close();
+            }
         }
     }
 
-    private static void setCaseIdAndActualClassifiert(Map<String, Pair<String, Integer>> answersToCaseId, Map<Integer, Map<String, Object>> vasScores) {
-        for (int i = 0; i < vasScores.keySet().size(); i++) {
+    private MultiLayerNetwork train(MultiLayerNetwork model, List<DataSet> trainingExamples, DataSet trainingData, DataSet verificationData, int startEpoch, int epochs, double learningRate, boolean decayLearningRate, Random random, ParallelTrainer parallelTrainer, TrainingCheckpoints checkpoints) {
+        boolean earlyStopping = Main.EARLY_STOPPING_PATIENCE > 0;
+        MultiLayerNetwork bestModel = null;
+        double bestScore = Double.MAX_VALUE;
+        int bestEpoch = 0;
+        int checksWithoutImprovement = 0;
 
-            Map<String, Object> verificationSample = vasScores.get(i);
-            String answerKey = toAnswerHash(verificationSample);
+        if (!decayLearningRate) {
+            log.info("setting the learningRate to {}", learningRate);
+            setLearningRate(model, parallelTrainer, learningRate);
+        }
 
-            String caseId = answersToCaseId.get(answerKey).getLeft();
-            Integer actualVasScore = answersToCaseId.get(answerKey).getRight();
+        for (int i = startEpoch; i < epochs; i++) {
+            if (i % 10000 == 0) {
+                if(Main.EVALUATE_MODEL_DURING_TRAINING) {
+                    evaluateModel(verificationData, model);
+                }
+            }
+            if (decayLearningRate && i > 0 && i % LEARNING_RATE_DECAY_EPOCHS == 0 && learningRate > MIN_DECAYED_LEARNING_RATE) {
+                double decayedLearningRate = Math.max(learningRate - LEARNING_RATE_DECAY, MIN_DECAYED_LEARNING_RATE);
+                log.info("setting the learningRate from {} to {}", learningRate, decayedLearningRate);
+                learningRate = decayedLearningRate;
+                setLearningRate(model, parallelTrainer, learningRate);
+            }
+
+            if (parallelTrainer != null) {
+                Collections.shuffle(trainingExamples, random);
+                parallelTrainer.fit(new ListDataSetIterator<>(trainingExamples, Main.BATCH_SIZE));
+            } else if (trainingExamples != null) {
+                Collections.shuffle(trainingExamples, random);
+                model.fit(new ListDataSetIterator<>(trainingExamples, Main.BATCH_SIZE));
+            } else {
+                model.fit(trainingData);
+            }
+            Main.METRICS.increment("training.epochs", 1);
+            if (checkpoints != null && i + 1 < epochs && checkpoints.isDue(i + 1)) {
+                checkpoints.save(model, i + 1, learningRate);
+            }
 
-            // set the classification from the training data
-            verificationSample.put("actual_vas_score", actualVasScore);
-            verificationSample.put("case_id", caseId);
+            if (earlyStopping && (i + 1) % Main.EARLY_STOPPING_INTERVAL == 0) {
+                double score = model.score(verificationData);
+                if (score < bestScore) {
+                    bestScore = score;
+                    bestEpoch = i + 1;
+                    bestModel = model.clone();
+                    checksWithoutImprovement = 0;
+                } else if (++checksWithoutImprovement >= Main.EARLY_STOPPING_PATIENCE) {
+                    log.info("Stopping the training after epoch {}, the verification score did not improve for {} checks", i + 1, checksWithoutImprovement);
+                    break;
+                }
+            }
+        }
+
+        if (bestModel != null) {
+            log.info("Using the model of epoch {} with the best verification score {}", bestEpoch, bestScore);
+            return bestModel;
         }
+        return model;
     }
 
-    private static void setCaseIdOfFinalRegisterData(Map<Integer, String> answersToCaseId, Map<Integer, Map<String, Object>> finalRegisterData) {
-        for (int i = 0; i < finalRegisterData.keySet().size(); i++) {
-            Map<String, Object> finalRegisterRow = finalRegisterData.get(i);
-            String caseId = answersToCaseId.get(i);
-            finalRegisterRow.put("case_id", caseId);
+    private static void setLearningRate(MultiLayerNetwork model, ParallelTrainer parallelTrainer, double learningRate) {
+        if (parallelTrainer != null) {
+            parallelTrainer.setLearningRate(learningRate);
+        } else {
+            model.setLearningRate(learningRate);
         }
     }
 
-    private static String toAnswerHash(Map<String, Object> verificationSample) {
-        List<String> sampleAsList = sampleAsList(verificationSample);
-        return Main.toAnswerHashKey(sampleAsList);
+    /**
+     * loads the saved model, the returned scorer appends the scored register chunks of the register file with the
+     * header to output/&lt;register.output.file&gt;
+     */
+    StreamingRegisterScorer openStreamingScorer(String dataDirectoryPath, DataNormalization normalizer, String[] header) throws IOException {
+        MultiLayerNetwork model = loadSavedModel(dataDirectoryPath);
+        return new StreamingRegisterScorer(model, normalizer, FeatureEncoder.forHeader(header), new File(dataDirectoryPath + "/output/" + Main.OUTPUT_FILE_NAME),
+                createPredictionCache(), Main.SCORING_BATCH_SIZE);
     }
 
     /**
-     * This method is to show how to convert the INDArray to a float array. This is to
-     * provide some more examples on how to convert INDArray to types that are more java
-     * centric.
+     * loads the saved model once for all requests of the server
      */
-    private static float[] getFloatArrayFromSlice(INDArray rowSlice) {
-        float[] result = new float[rowSlice.columns()];
-        for (int i = 0; i < rowSlice.columns(); i++) {
-            result[i] = rowSlice.getFloat(i);
-        }
-        return result;
+    ScoringServer createScoringServer(String dataDirectoryPath, DataNormalization normalizer, String[] header, int batchSize, long maxBatchWaitMillis) throws IOException {
+        MultiLayerNetwork model = loadSavedModel(dataDirectoryPath);
+        return new ScoringServer(model, normalizer, header, batchSize, maxBatchWaitMillis, createPredictionCache());
     }
 
     /**
-     * find the maximum item index. This is used when the data is fitted and we
-     * want to determine which class to assign the test row to
+     * @return a cache of ann.prediction.cache.size patterns, or null if the cache is disabled
      */
-    private static int maxIndex(float[] vals) {
-        int maxIndex = 0;
-        for (int i = 1; i < vals.length; i++) {
-            float newnumber = vals[i];
-            if ((newnumber > vals[maxIndex])) {
-                maxIndex = i;
+    private static PredictionCache createPredictionCache() {
+        return Main.PREDICTION_CACHE_SIZE > 0 ? new PredictionCache(Main.PREDICTION_CACHE_SIZE) : null;
+    }
+
+    /**
+     * exports the saved model and its normalizer to a .fnet file of the same name in output, if the compact network
+     * calculates the same probabilities for the register data as the model. The share of the verification and register
+     * rows that the int8 quantized compact network classifies like the model is logged.
+     */
+    void exportCompactNetwork(String dataDirectoryPath, DataNormalization normalizer, DataSet verificationData, DataSet registerData) throws IOException {
+        MultiLayerNetwork model = loadSavedModel(dataDirectoryPath);
+        CompactNetwork network = CompactNetworkExporter.export(model, normalizer);
+        if (registerData.numExamples() > 0) {
+            double maxDifference = CompactNetworkExporter.maxDifference(network, model, normalizer, registerData.getFeatures());
+            log.info("Largest difference of the compact network's probabilities for the register data: " + maxDifference);
+            if (maxDifference > COMPACT_NETWORK_TOLERANCE) {
+                throw new IllegalStateException("The compact network differs from the model by " + maxDifference);
             }
         }
-        return maxIndex;
+        QuantizedNetwork quantizedNetwork = network.quantize();
+        log.info("The quantized compact network agrees with the model for "
+                + CompactNetworkExporter.quantizedAgreement(quantizedNetwork, model, normalizer, verificationData.getFeatures())
+                + " of the verification data and "
+                + CompactNetworkExporter.quantizedAgreement(quantizedNetwork, model, normalizer, registerData.getFeatures())
+                + " of the register data");
+        File file = new File(dataDirectoryPath + "/output/" + Main.ANN_FILE_NAME.replaceFirst("\\.nnet$", "") + ".fnet");
+        network.write(file);
+        log.info("Wrote compact network to: " + file);
+    }
+
+    static MultiLayerNetwork loadSavedModel(String dataDirectoryPath) throws IOException {
+        log.info("Skipping training and load the model from file...");
+        File file = new File(dataDirectoryPath + "/ann/" + Main.ANN_FILE_NAME);
+        return MultiLayerNetwork.load(file, false);
     }
 
     /**
-     * take the dataset loaded for the metric and make the record model out of it so
-     * we can correlate the fitted classifier to the record.
+     * @return the normalizer that was saved together with the saved model, or null if the model file has none
      */
-    private static Map<Integer, Map<String, Object>> makeRegisterForTesting(DataSet testData) {
-        Map<Integer, Map<String, Object>> cases = new HashMap<>();
+    DataNormalization loadSavedNormalizer(String dataDirectoryPath) {
+        File file = new File(dataDirectoryPath + "/ann/" + Main.ANN_FILE_NAME);
+        DataNormalization normalizer = ModelSerializer.restoreNormalizerFromFile(file);
+        if (normalizer == null) {
+            log.info("The model file " + file + " contains no normalizer, it is fitted to the training data");
+        }
+        return normalizer;
+    }
+
+    /**
+     * saves the model together with the normalizer of its input, so the saved model can be used without the training data
+     */
+    static void saveModel(MultiLayerNetwork model, DataNormalization normalizer, File file) throws IOException {
+        model.save(file);
+        ModelSerializer.addNormalizerToModel(file, normalizer);
+    }
 
-        INDArray features = testData.getFeatures();
-        for (int i = 0; i < features.rows(); i++) {
-            INDArray slice = features.slice(i);
-            Map<String, Object> dataSample = new HashMap<>();
+    /**
+     * @return the type and statistics of the normalizer
+     */
+    static String describeNormalizer(DataNormalization normalizer) {
+        if (normalizer instanceof NormalizerStandardize) {
+            NormalizerStandardize standardize = (NormalizerStandardize) normalizer;
+            return "standardize mean: " + Arrays.toString(standardize.getMean().dup().data().asFloat())
+                    + " std: " + Arrays.toString(standardize.getStd().dup().data().asFloat());
+        }
+        return normalizer.getClass().getName();
+    }
 
-            //set the attributes
-            setAttribute20191229(slice, dataSample);
+    static DataNormalization fitNormalizer(DataSet trainingData) {
+        DataNormalization normalizer = new NormalizerStandardize();
+        normalizer.fit(trainingData);           //Collect the statistics (mean/stdev) from the training data. This does not modify the input data
+        return normalizer;
+    }
 
-            if (dataSample.entrySet().isEmpty()) {
-                throw new RuntimeException("Missing configuration for column count: " + slice.columns());
+    /**
+     * collapses the rows with the same features into one row in the order of their first rows. The rows are grouped by
+     * the {@link SymptomPatternIndex} pattern of their feature codes, rows without pattern stay distinct rows. The labels
+     * of a collapsed row are the sum of the labels of its rows, e.g. the number of rows per VAS value, scaled by the
+     * number of distinct rows per row. The mean loss of the distinct rows is the mean loss of all rows, so a full batch
+     * epoch trains the same model on fewer rows and a mini batch of distinct rows is an unbiased sample of the loss of
+     * all rows.
+     *
+     * @param data   the encoded rows prior to normalization
+     * @param header the header of the file of the rows
+     */
+    static DataSet collapseDuplicates(DataSet data, String[] header) {
+        int rows = data.numExamples();
+        int featureCount = (int) data.getFeatures().size(1);
+        int labelCount = (int) data.getLabels().size(1);
+        float[] features = data.getFeatures().dup('c').data().asFloat();
+        float[] labels = data.getLabels().dup('c').data().asFloat();
+
+        SymptomPatternIndex patternIndex = new SymptomPatternIndex(header);
+        if (patternIndex.featureCount() != featureCount) {
+            throw new IllegalArgumentException("Expected " + patternIndex.featureCount() + " features, got " + featureCount);
+        }
+        // the index of the distinct row of every row
+        int[] distinctRows = new int[rows];
+        int[] firstRows = new int[rows];
+        float[] labelSums = new float[rows * labelCount];
+        int distinctRowCount = 0;
+        for (int row = 0; row < rows; row++) {
+            int vasCode = maxIndex(labels, row * labelCount, labelCount);
+            int firstRow = patternIndex.add(patternIndex.pattern(features, row * featureCount),
+                    SymptomPatternIndex.vasValue(FeatureEncoder.decodeVas(vasCode)), row);
+            if (firstRow == row) {
+                firstRows[distinctRowCount] = row;
+                distinctRows[row] = distinctRowCount++;
+            } else {
+                distinctRows[row] = distinctRows[firstRow];
+            }
+            for (int j = 0; j < labelCount; j++) {
+                labelSums[distinctRows[row] * labelCount + j] += labels[row * labelCount + j];
             }
+        }
 
-            cases.put(i, dataSample);
+        float scale = (float) distinctRowCount / rows;
+        float[] distinctFeatures = new float[distinctRowCount * featureCount];
+        float[] distinctLabels = new float[distinctRowCount * labelCount];
+        for (int i = 0; i < distinctRowCount; i++) {
+            System.arraycopy(features, firstRows[i] * featureCount, distinctFeatures, i * featureCount, featureCount);
+        }
+        for (int i = 0; i < distinctLabels.length; i++) {
+            distinctLabels[i] = labelSums[i] * scale;
         }
-        return cases;
+        log.info("Collapsed the {} training rows to {} distinct rows, {} rows without pattern", rows, distinctRowCount,
+                patternIndex.rowsWithoutPattern());
+        return new DataSet(Nd4j.create(distinctFeatures, new int[]{distinctRowCount, featureCount}, 'c'),
+                Nd4j.create(distinctLabels, new int[]{distinctRowCount, labelCount}, 'c'));
     }
 
-    private static void setAttribute20191229(INDArray slice, Map<String, Object> dataSample) {
-        dataSample.put("skin", yesNo.get(slice.getInt(0)));
-        dataSample.put("q_111_angioedema", yesNoUnknown.get((slice.getInt(1))));
-        dataSample.put("pharynx_larynx", yesNo.get(slice.getInt(2)));
-        dataSample.put("abdomin", yesNo.get(slice.getInt(3)));
-        dataSample.put("nausea", yesNoUnknown.get((slice.getInt(4))));
-        dataSample.put("vomiting", yesNoUnknown.get((slice.getInt(5))));
-        dataSample.put("diarrhoea", yesNoUnknown.get((slice.getInt(6))));
-        dataSample.put("incontinence", yesNoUnknown.get((slice.getInt(7))));
-        dataSample.put("dyspnea", yesNoUnknown.get((slice.getInt(8))));
-        dataSample.put("chest_tightness_v5", yesNoUnknown.get((slice.getInt(9))));
-        dataSample.put("cough_v5", yesNoUnknown.get((slice.getInt(10))));
-        dataSample.put("wheezing_expiratory_distre", yesNoUnknown.get((slice.getInt(11))));
-        dataSample.put("stridor_inspiratory", yesNoUnknown.get((slice.getInt(12))));
-        dataSample.put("respiratory_arrest", yesNoUnknown.get((slice.getInt(13))));
-        dataSample.put("hypotension_collapse_v5", yesNoUnknown.get((slice.getInt(14))));
-        dataSample.put("dizziness", yesNoUnknown.get((slice.getInt(15))));
-        dataSample.put("tachycardia", yesNoUnknown.get((slice.getInt(16))));
-        dataSample.put("palpitations_cardiac_arryt", yesNoUnknown.get((slice.getInt(17))));
-        dataSample.put("chest_pain_angina_v5", yesNoUnknown.get((slice.getInt(18))));
-        dataSample.put("reductions_of_alertness", yesNoUnknown.get((slice.getInt(19))));
-        dataSample.put("loss_of_consciousness", yesNoUnknown.get((slice.getInt(20))));
-        dataSample.put("cardiac_arrest", yesNoUnknown.get((slice.getInt(21))));
-        dataSample.put("kind", yesNo.get(slice.getInt(22)));
-        dataSample.put("d_elicitor_gr5", elicitors.get(slice.getInt(23)));
+    private static int maxIndex(float[] values, int offset, int length) {
+        int maxIndex = 0;
+        for (int i = 1; i < length; i++) {
+            if (values[offset + i] > values[offset + maxIndex]) {
+                maxIndex = i;
+            }
+        }
+        return maxIndex;
     }
 
+    private INDArray evaluateModel(DataSet testData, MultiLayerNetwork model) {
+        Evaluation eval = new Evaluation(Main.VAS_VALUE_COUNT);
+        INDArray output = model.output(testData.getFeatures());
+
+        eval.eval(testData.getLabels(), output);
+        log.info(eval.stats());
+        Main.METRICS.set("verification.accuracy", eval.accuracy());
+        Main.METRICS.set("verification.f1", eval.f1());
+        return output;
+    }
+
+    private INDArray calculateModel(DataSet registerData, ScoredCases registerCases, MultiLayerNetwork model) {
+        PredictionCache predictionCache = createPredictionCache();
+        if (predictionCache == null) {
+            return output(model, registerData.getFeatures(), Main.SCORING_BATCH_SIZE);
+        }
+        INDArray output = predictionCache.output(model, registerData.getFeatures(), registerCases, Main.SCORING_BATCH_SIZE);
+        log.info("Calculated the register with " + predictionCache);
+        return output;
+    }
+
+    /**
+     * calculates the output of the rows with one model output call per batch of batchSize rows, 0 calculates all rows
+     * with one call
+     */
+    static INDArray output(MultiLayerNetwork model, INDArray features, int batchSize) {
+        int rows = features.rows();
+        if (batchSize <= 0 || rows <= batchSize) {
+            return model.output(features);
+        }
+        INDArray output = null;
+        for (int from = 0; from < rows; from += batchSize) {
+            INDArrayIndex batchRows = NDArrayIndex.interval(from, Math.min(rows, from + batchSize));
+            INDArray batchOutput = model.output(features.get(batchRows, NDArrayIndex.all()));
+            if (output == null) {
+                output = Nd4j.create(rows, batchOutput.columns());
+            }
+            output.put(new INDArrayIndex[]{batchRows, NDArrayIndex.all()}, batchOutput);
+        }
+        return output;
+    }
 
     static Map<Integer, String> readEnumCSV(String csvFileClasspath) {
         try {
@@ -404,7 +593,7 @@ public class NeuronalNetwork {
     /**
      * used for testing and training
      */
-    private static DataSet readCSVDataset(
+    static DataSet readCSVDataset(
             String fileSystemPath, int batchSize, int labelIndex, int numClasses)
             throws IOException, InterruptedException {
 
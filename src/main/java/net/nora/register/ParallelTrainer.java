@@ -0,0 +1,165 @@
+package net.nora.register;
+
+import org.deeplearning4j.datasets.iterator.AsyncDataSetIterator;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Trains a model with parameter averaging over replicas on local worker threads. The mini batches of an epoch are dealt
+ * round robin to the replicas, every replica fits averagingFrequency mini batches, then the parameters and the updater
+ * state of the replicas are averaged into the model and copied back to the replicas.
+ * <p>
+ * The mini batches are always dealt and averaged in the same order, so the training is reproducible for a seed and a
+ * number of workers. It is not the same as training with one worker, the averaged model sees the mean of the replica
+ * updates instead of one update after another.
+ * <p>
+ * Every replica reports its iterations to its own training listeners, the listeners of the model are not called.
+ */
+class ParallelTrainer implements AutoCloseable {
+
+    private static Logger log = LoggerFactory.getLogger(ParallelTrainer.class);
+
+    private final MultiLayerNetwork model;
+    private final MultiLayerNetwork[] replicas;
+    private final int averagingFrequency;
+    private final int prefetchBuffer;
+    private final ExecutorService executor;
+
+    ParallelTrainer(MultiLayerNetwork model, int workers, int averagingFrequency, int prefetchBuffer) {
+        if (workers < 2) {
+            throw new IllegalArgumentException("Parallel training needs at least 2 workers, not " + workers);
+        }
+        if (averagingFrequency < 1) {
+            throw new IllegalArgumentException("The averaging frequency must be at least 1, not " + averagingFrequency);
+        }
+        this.model = model;
+        this.averagingFrequency = averagingFrequency;
+        this.prefetchBuffer = prefetchBuffer;
+        this.replicas = new MultiLayerNetwork[workers];
+        for (int i = 0; i < workers; i++) {
+            replicas[i] = model.clone();
+            // the listeners keep the state of their model's iterations, so they are not shared between the workers
+            NeuronalNetwork.setTrainingListeners(replicas[i]);
+        }
+        this.executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "training-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        log.info("Training with {} workers, averaging every {} mini batches", workers, averagingFrequency);
+    }
+
+    /**
+     * sets the learning rate of the model and all replicas
+     */
+    void setLearningRate(double learningRate) {
+        model.setLearningRate(learningRate);
+        for (MultiLayerNetwork replica : replicas) {
+            replica.setLearningRate(learningRate);
+        }
+    }
+
+    /**
+     * fits one epoch of the mini batches of the iterator
+     */
+    void fit(DataSetIterator iterator) {
+        DataSetIterator batches = prefetchBuffer > 0 ? new AsyncDataSetIterator(iterator, prefetchBuffer) : iterator;
+        try {
+            List<List<DataSet>> workerBatches = new ArrayList<>();
+            for (int i = 0; i < replicas.length; i++) {
+                workerBatches.add(new ArrayList<>());
+            }
+            int batchesPerRound = replicas.length * averagingFrequency;
+            int batchCount = 0;
+            while (batches.hasNext()) {
+                workerBatches.get(batchCount % replicas.length).add(batches.next());
+                if (++batchCount == batchesPerRound) {
+                    fitRound(workerBatches);
+                    batchCount = 0;
+                }
+            }
+            if (batchCount > 0) {
+                fitRound(workerBatches);
+            }
+        } finally {
+            if (batches instanceof AsyncDataSetIterator) {
+                ((AsyncDataSetIterator) batches).shutdown();
+            }
+        }
+    }
+
+    /**
+     * fits the mini batches of every replica in parallel and averages the replicas that had mini batches
+     */
+    private void fitRound(List<List<DataSet>> workerBatches) {
+        List<Future<?>> results = new ArrayList<>();
+        int activeReplicas = 0;
+        for (int i = 0; i < replicas.length; i++) {
+            List<DataSet> replicaBatches = workerBatches.get(i);
+            if (replicaBatches.isEmpty()) {
+                break;
+            }
+            activeReplicas++;
+            MultiLayerNetwork replica = replicas[i];
+            List<DataSet> fitted = new ArrayList<>(replicaBatches);
+            replicaBatches.clear();
+            results.add(executor.submit(() -> {
+                for (DataSet batch : fitted) {
+                    replica.fit(batch);
+                }
+            }));
+        }
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while training", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("A training worker failed", e.getCause());
+            }
+        }
+        average(activeReplicas);
+    }
+
+    private void average(int activeReplicas) {
+        INDArray params = replicas[0].params().dup();
+        INDArray updaterState = replicas[0].getUpdater().getStateViewArray();
+        updaterState = updaterState == null ? null : updaterState.dup();
+        for (int i = 1; i < activeReplicas; i++) {
+            params.addi(replicas[i].params());
+            if (updaterState != null) {
+                updaterState.addi(replicas[i].getUpdater().getStateViewArray());
+            }
+        }
+        params.divi(activeReplicas);
+        model.setParams(params);
+        if (updaterState != null) {
+            updaterState.divi(activeReplicas);
+            model.getUpdater().getStateViewArray().assign(updaterState);
+        }
+
+        for (MultiLayerNetwork replica : replicas) {
+            replica.setParams(params);
+            if (updaterState != null) {
+                replica.getUpdater().getStateViewArray().assign(updaterState);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
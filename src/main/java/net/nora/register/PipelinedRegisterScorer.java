@@ -0,0 +1,149 @@
+package net.nora.register;
+
+import org.nd4j.linalg.dataset.DataSet;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scores the register chunks of a {@link StreamingRegisterScorer} in three stages: the thread that reads and encodes the
+ * chunks submits them, a calculating thread calculates their output and a writing thread appends them to the output csv.
+ * The stages are connected by bounded queues, so reading, calculating and writing overlap and at most a few chunks are
+ * held in memory.
+ */
+class PipelinedRegisterScorer implements Closeable {
+
+    // chunks waiting between two stages
+    private static final int QUEUE_CAPACITY = 4;
+    private static final long POLL_MILLIS = 100;
+    private static final Chunk END = new Chunk(null, null, null);
+
+    private final StreamingRegisterScorer scorer;
+    private final BlockingQueue<Chunk> chunksToCalculate = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final BlockingQueue<Chunk> chunksToWrite = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread calculatingThread;
+    private final Thread writingThread;
+    private volatile Throwable failure;
+    private boolean finished;
+
+    PipelinedRegisterScorer(StreamingRegisterScorer scorer) {
+        this.scorer = scorer;
+        this.calculatingThread = new Thread(this::calculate, "register-calculator");
+        this.writingThread = new Thread(this::write, "register-writer");
+        calculatingThread.setDaemon(true);
+        writingThread.setDaemon(true);
+        calculatingThread.start();
+        writingThread.start();
+    }
+
+    /**
+     * queues the chunk for calculation, waits while the queue is full
+     */
+    void submit(DataSet registerData, String[] caseIds) {
+        checkFailure();
+        try {
+            put(chunksToCalculate, new Chunk(registerData, caseIds, null));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while scoring the register", e);
+        }
+    }
+
+    /**
+     * waits until all submitted chunks are written, the streaming scorer is not closed
+     */
+    void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        try {
+            if (failure == null) {
+                put(chunksToCalculate, END);
+            }
+            calculatingThread.join();
+            writingThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while scoring the register", e);
+        }
+        checkFailure();
+    }
+
+    /**
+     * finishes the scoring, see {@link #finish()}
+     */
+    @Override
+    public void close() {
+        finish();
+    }
+
+    private void calculate() {
+        try {
+            Chunk chunk;
+            while ((chunk = take(chunksToCalculate)) != END) {
+                ScoredCases cases = scorer.calculate(chunk.registerData, chunk.caseIds);
+                put(chunksToWrite, new Chunk(null, null, cases));
+            }
+            put(chunksToWrite, END);
+        } catch (Throwable e) {
+            // keep the first failure, the other stage fails because of it
+            if (failure == null) {
+                failure = e;
+            }
+        }
+    }
+
+    private void write() {
+        try {
+            Chunk chunk;
+            while ((chunk = take(chunksToWrite)) != END) {
+                scorer.write(chunk.cases);
+            }
+        } catch (Throwable e) {
+            // keep the first failure, the other stage fails because of it
+            if (failure == null) {
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * @return the next chunk, or {@link #END} if another stage failed
+     */
+    private Chunk take(BlockingQueue<Chunk> queue) throws InterruptedException {
+        Chunk chunk;
+        while ((chunk = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+            if (failure != null) {
+                return END;
+            }
+        }
+        return chunk;
+    }
+
+    private void put(BlockingQueue<Chunk> queue, Chunk chunk) throws InterruptedException {
+        while (!queue.offer(chunk, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            checkFailure();
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new IllegalStateException("Scoring the register failed", failure);
+        }
+    }
+
+    private static class Chunk {
+        private final DataSet registerData;
+        private final String[] caseIds;
+        private final ScoredCases cases;
+
+        private Chunk(DataSet registerData, String[] caseIds, ScoredCases cases) {
+            this.registerData = registerData;
+            this.caseIds = caseIds;
+            this.cases = cases;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package net.nora.register;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the output probabilities of the answer patterns of already scored cases, so repeated patterns of the register
+ * are only calculated once. The least recently used pattern is evicted when more than maxPatterns are cached.
+ * <p>
+ * A cache belongs to the scorer of one model and normalizer and is not thread safe.
+ */
+class PredictionCache {
+
+    private final int maxPatterns;
+    private final LinkedHashMap<Long, float[]> probabilities;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    PredictionCache(int maxPatterns) {
+        this.maxPatterns = maxPatterns;
+        this.probabilities = new LinkedHashMap<Long, float[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, float[]> eldest) {
+                if (size() > PredictionCache.this.maxPatterns) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * calculates the output of the normalized features of the cases. Cases with a cached pattern are taken from the
+     * cache, the other cases are calculated once for every distinct pattern in batches of batchSize rows (0 calculates
+     * them with one model output call).
+     */
+    INDArray output(MultiLayerNetwork model, INDArray normalizedFeatures, ScoredCases cases, int batchSize) {
+        int rows = cases.size();
+        float[][] rowProbabilities = new float[rows][];
+        long[] rowPatterns = new long[rows];
+        // the row of the features to calculate for every row that is not cached
+        int[] calculatedRows = new int[rows];
+        List<Integer> rowsToCalculate = new ArrayList<>();
+        Map<Long, Integer> patternsToCalculate = new HashMap<>();
+
+        for (int row = 0; row < rows; row++) {
+            long pattern = cases.pattern(row);
+            rowPatterns[row] = pattern;
+            float[] cached = pattern == FeatureEncoder.NO_PATTERN ? null : probabilities.get(pattern);
+            if (cached != null) {
+                hits++;
+                rowProbabilities[row] = cached;
+                continue;
+            }
+            Integer calculatedRow = pattern == FeatureEncoder.NO_PATTERN ? null : patternsToCalculate.get(pattern);
+            if (calculatedRow != null) {
+                // an earlier case of these features is calculated anyway
+                hits++;
+            } else {
+                misses++;
+                calculatedRow = rowsToCalculate.size();
+                rowsToCalculate.add(row);
+                if (pattern != FeatureEncoder.NO_PATTERN) {
+                    patternsToCalculate.put(pattern, calculatedRow);
+                }
+            }
+            calculatedRows[row] = calculatedRow;
+        }
+
+        if (!rowsToCalculate.isEmpty()) {
+            int[] featureRows = rowsToCalculate.stream().mapToInt(Integer::intValue).toArray();
+            INDArray output = NeuronalNetwork.output(model, normalizedFeatures.getRows(featureRows), batchSize);
+            float[][] calculated = new float[featureRows.length][];
+            for (int i = 0; i < featureRows.length; i++) {
+                calculated[i] = output.getRow(i).dup().data().asFloat();
+                long pattern = rowPatterns[featureRows[i]];
+                if (pattern != FeatureEncoder.NO_PATTERN) {
+                    probabilities.put(pattern, calculated[i]);
+                }
+            }
+            for (int row = 0; row < rows; row++) {
+                if (rowProbabilities[row] == null) {
+                    rowProbabilities[row] = calculated[calculatedRows[row]];
+                }
+            }
+        }
+
+        int classCount = rows == 0 ? 0 : rowProbabilities[0].length;
+        float[] outputData = new float[rows * classCount];
+        for (int row = 0; row < rows; row++) {
+            System.arraycopy(rowProbabilities[row], 0, outputData, row * classCount, classCount);
+        }
+        return Nd4j.create(outputData, new int[]{rows, classCount}, 'c');
+    }
+
+    @Override
+    public String toString() {
+        return "prediction cache: " + hits + " hits, " + misses + " misses, " + probabilities.size()
+                + " cached patterns, " + evictions + " evicted";
+    }
+}
@@ -0,0 +1,282 @@
+package net.nora.register;
+
+/**
+ * Int8 version of a {@link CompactNetwork} that only classifies. The standardization of the inputs is folded into the
+ * weights and biases of the first layer, so the raw feature codes are used as inputs. The first layer keeps its float
+ * weights: a column that is constant in the training data has a tiny standard deviation and folds into weights that are
+ * orders of magnitude larger than the others, so one scale for the layer would round all other weights to 0. The weights
+ * of the other layers are quantized to int8 with one scale per layer, the activations of the hidden layers with one
+ * scale per row.
+ * <p>
+ * Rows are classified in blocks of {@link #BLOCK_ROWS} rows. The values of a block are held with one row of
+ * {@link #BLOCK_ROWS} values per neuron, so every weight is multiplied with the values of all rows of the block in one
+ * loop, which the jit compiles to vector instructions. The int8 activations are held in int lanes, because the jit does
+ * not vectorize loops over byte arrays that are summed in int. The hidden layers approximate tanh and sigmoid with a
+ * rational function, whose error is far below the resolution of the int8 activations and which is vectorized, unlike
+ * Math.exp. A workspace must not be shared between threads.
+ */
+class QuantizedNetwork {
+
+    static final int BLOCK_ROWS = 64;
+    private static final int INT8_MAX = 127;
+    // the rational approximation of tanh reaches 1 at this value
+    private static final float TANH_LIMIT = 4.97f;
+
+    private final String[] activations;
+    private final int[] layerInputs;
+    private final int[] layerOutputs;
+    // firstWeights[output * layerInputs[0] + input]
+    private final float[] firstWeights;
+    // weights[layer][output * layerInputs[layer] + input] = weight / weightScales[layer], from the second layer on
+    private final byte[][] weights;
+    private final float[] weightScales;
+    private final float[][] biases;
+    private final int maxLayerSize;
+
+    private QuantizedNetwork(String[] activations, int[] layerInputs, int[] layerOutputs, float[] firstWeights,
+                             byte[][] weights, float[] weightScales, float[][] biases, int maxLayerSize) {
+        this.activations = activations;
+        this.layerInputs = layerInputs;
+        this.layerOutputs = layerOutputs;
+        this.firstWeights = firstWeights;
+        this.weights = weights;
+        this.weightScales = weightScales;
+        this.biases = biases;
+        this.maxLayerSize = maxLayerSize;
+    }
+
+    /**
+     * quantizes the float weights of the layers, one row of inputs per output like in the {@link CompactNetwork}. The
+     * first layer's weights and biases already contain the standardization of the inputs.
+     */
+    static QuantizedNetwork quantize(String[] activations, int[] layerInputs, int[] layerOutputs, float[][] weights,
+                                     float[][] biases) {
+        int layerCount = activations.length;
+        byte[][] quantizedWeights = new byte[layerCount][];
+        float[] weightScales = new float[layerCount];
+        int maxLayerSize = layerInputs[0];
+        for (int layer = 0; layer < layerCount; layer++) {
+            if (layer < layerCount - 1 && CompactNetwork.SOFTMAX.equals(activations[layer])) {
+                throw new IllegalArgumentException("Layer " + layer + " is a hidden softmax layer");
+            }
+            maxLayerSize = Math.max(maxLayerSize, layerOutputs[layer]);
+            if (layer == 0) {
+                continue;
+            }
+            float maxWeight = 0;
+            for (float weight : weights[layer]) {
+                maxWeight = Math.max(maxWeight, Math.abs(weight));
+            }
+            weightScales[layer] = maxWeight > 0 ? maxWeight / INT8_MAX : 1;
+            quantizedWeights[layer] = new byte[weights[layer].length];
+            for (int i = 0; i < weights[layer].length; i++) {
+                quantizedWeights[layer][i] = (byte) Math.round(weights[layer][i] / weightScales[layer]);
+            }
+        }
+        return new QuantizedNetwork(activations, layerInputs, layerOutputs, weights[0], quantizedWeights, weightScales,
+                biases, maxLayerSize);
+    }
+
+    int inputCount() {
+        return layerInputs[0];
+    }
+
+    /**
+     * @return a workspace for {@link #classify}, one per scoring thread
+     */
+    Workspace newWorkspace() {
+        return new Workspace(maxLayerSize);
+    }
+
+    /**
+     * writes the index of the highest output of every row of the raw feature codes, inputCount() codes per row, to
+     * classes[0, rows)
+     */
+    void classify(byte[] codes, int rows, int[] classes, Workspace workspace) {
+        int inputCount = inputCount();
+        for (int blockStart = 0; blockStart < rows; blockStart += BLOCK_ROWS) {
+            int blockRows = Math.min(BLOCK_ROWS, rows - blockStart);
+            for (int row = 0; row < blockRows; row++) {
+                int codeRow = (blockStart + row) * inputCount;
+                for (int i = 0; i < inputCount; i++) {
+                    workspace.codes[i * BLOCK_ROWS + row] = codes[codeRow + i];
+                }
+            }
+            classifyBlock(blockRows, workspace);
+            System.arraycopy(workspace.classes, 0, classes, blockStart, blockRows);
+        }
+    }
+
+    private void classifyBlock(int blockRows, Workspace workspace) {
+        int lastLayer = activations.length - 1;
+        for (int layer = 0; layer <= lastLayer; layer++) {
+            if (layer == 0) {
+                firstLayer(blockRows, workspace);
+            } else {
+                quantizedLayer(layer, blockRows, workspace);
+            }
+
+            if (layer == lastLayer) {
+                // the activations keep the order of the outputs, the highest sum is the class
+                classes(layerOutputs[layer], blockRows, workspace);
+            } else {
+                activate(activations[layer], workspace.values, layerOutputs[layer] * BLOCK_ROWS);
+                requantize(layerOutputs[layer], blockRows, workspace);
+            }
+        }
+    }
+
+    /**
+     * writes the sums of the float weights and the feature codes of the block to the values
+     */
+    private void firstLayer(int blockRows, Workspace workspace) {
+        int nIn = layerInputs[0];
+        int nOut = layerOutputs[0];
+        float[] codes = workspace.codes;
+        float[] values = workspace.values;
+        for (int o = 0; o < nOut; o++) {
+            int valueRow = o * BLOCK_ROWS;
+            float bias = biases[0][o];
+            for (int row = 0; row < blockRows; row++) {
+                values[valueRow + row] = bias;
+            }
+            for (int i = 0; i < nIn; i++) {
+                float weight = firstWeights[o * nIn + i];
+                int codeRow = i * BLOCK_ROWS;
+                for (int row = 0; row < blockRows; row++) {
+                    values[valueRow + row] += weight * codes[codeRow + row];
+                }
+            }
+        }
+    }
+
+    /**
+     * writes the int sums of the int8 weights and the quantized activations of the block, scaled back to float, to the
+     * values
+     */
+    private void quantizedLayer(int layer, int blockRows, Workspace workspace) {
+        int nIn = layerInputs[layer];
+        int nOut = layerOutputs[layer];
+        byte[] w = weights[layer];
+        int[] inputs = workspace.activations;
+        int[] sums = workspace.sums;
+        float[] values = workspace.values;
+        float[] scales = workspace.rowScales;
+        for (int o = 0; o < nOut; o++) {
+            for (int row = 0; row < blockRows; row++) {
+                sums[row] = 0;
+            }
+            for (int i = 0; i < nIn; i++) {
+                int weight = w[o * nIn + i];
+                if (weight == 0) {
+                    continue;
+                }
+                int inputRow = i * BLOCK_ROWS;
+                for (int row = 0; row < blockRows; row++) {
+                    sums[row] += weight * inputs[inputRow + row];
+                }
+            }
+            int valueRow = o * BLOCK_ROWS;
+            float weightScale = weightScales[layer];
+            float bias = biases[layer][o];
+            for (int row = 0; row < blockRows; row++) {
+                values[valueRow + row] = sums[row] * weightScale * scales[row] + bias;
+            }
+        }
+    }
+
+    /**
+     * quantizes the activations of every row of the block with the scale of the row's largest activation
+     */
+    private static void requantize(int size, int blockRows, Workspace workspace) {
+        float[] values = workspace.values;
+        float[] scales = workspace.rowScales;
+        float[] inverseScales = workspace.inverseScales;
+        for (int row = 0; row < blockRows; row++) {
+            scales[row] = 0;
+        }
+        for (int o = 0; o < size; o++) {
+            int valueRow = o * BLOCK_ROWS;
+            for (int row = 0; row < blockRows; row++) {
+                scales[row] = Math.max(scales[row], Math.abs(values[valueRow + row]));
+            }
+        }
+        for (int row = 0; row < blockRows; row++) {
+            scales[row] = scales[row] > 0 ? scales[row] / INT8_MAX : 1;
+            inverseScales[row] = 1 / scales[row];
+        }
+        for (int o = 0; o < size; o++) {
+            int valueRow = o * BLOCK_ROWS;
+            for (int row = 0; row < blockRows; row++) {
+                // rounds like Math.round, the shifted value is positive, so the cast rounds down
+                float value = values[valueRow + row] * inverseScales[row];
+                workspace.activations[valueRow + row] = (int) (value + INT8_MAX + 1.5f) - INT8_MAX - 1;
+            }
+        }
+    }
+
+    private static void classes(int size, int blockRows, Workspace workspace) {
+        float[] values = workspace.values;
+        for (int row = 0; row < blockRows; row++) {
+            int maxIndex = 0;
+            for (int o = 1; o < size; o++) {
+                if (values[o * BLOCK_ROWS + row] > values[maxIndex * BLOCK_ROWS + row]) {
+                    maxIndex = o;
+                }
+            }
+            workspace.classes[row] = maxIndex;
+        }
+    }
+
+    private static void activate(String activation, float[] values, int length) {
+        switch (activation) {
+            case CompactNetwork.TANH:
+                for (int i = 0; i < length; i++) {
+                    values[i] = tanh(values[i]);
+                }
+                break;
+            case CompactNetwork.SIGMOID:
+                for (int i = 0; i < length; i++) {
+                    values[i] = 0.5f + 0.5f * tanh(0.5f * values[i]);
+                }
+                break;
+            case CompactNetwork.RELU:
+                for (int i = 0; i < length; i++) {
+                    values[i] = Math.max(0, values[i]);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @return the (7, 6) pade approximation of tanh, which differs by less than 1e-4 from tanh
+     */
+    private static float tanh(float value) {
+        float x = Math.max(-TANH_LIMIT, Math.min(TANH_LIMIT, value));
+        float x2 = x * x;
+        float numerator = x * (135135f + x2 * (17325f + x2 * (378f + x2)));
+        float denominator = 135135f + x2 * (62370f + x2 * (3150f + x2 * 28f));
+        return numerator / denominator;
+    }
+
+    /**
+     * the values of one block of rows, one row of {@link #BLOCK_ROWS} values per neuron
+     */
+    static class Workspace {
+        private final float[] codes;
+        private final float[] values;
+        private final int[] activations;
+        private final int[] sums = new int[BLOCK_ROWS];
+        private final float[] rowScales = new float[BLOCK_ROWS];
+        private final float[] inverseScales = new float[BLOCK_ROWS];
+        private final int[] classes = new int[BLOCK_ROWS];
+
+        private Workspace(int maxLayerSize) {
+            codes = new float[BLOCK_ROWS * maxLayerSize];
+            values = new float[BLOCK_ROWS * maxLayerSize];
+            activations = new int[BLOCK_ROWS * maxLayerSize];
+        }
+    }
+}
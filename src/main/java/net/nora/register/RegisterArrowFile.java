@@ -0,0 +1,310 @@
+package net.nora.register;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.memory.util.ArrowBufPointer;
+import org.apache.arrow.vector.BaseIntVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.ValueVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowFileReader;
+import org.apache.arrow.vector.ipc.ArrowFileWriter;
+import org.apache.arrow.vector.ipc.ArrowReader;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+import org.apache.arrow.vector.ipc.ArrowWriter;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.DictionaryEncoding;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.apache.arrow.vector.types.pojo.Schema;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Register rows in Apache Arrow IPC files, as exported by the warehouse: files with the extension {@link #FILE_EXTENSION}
+ * hold the IPC file format, files with {@link #STREAM_EXTENSION} the IPC stream format. Every column is read as the
+ * string of its values, a null value as an empty value. Dictionary encoded columns are decoded once per record batch,
+ * the rows of a batch share the dictionary strings. The repeated answers of plain string columns are shared the same way.
+ * <p>
+ * The writer writes every column as plain utf-8 strings in record batches of up to {@link #BATCH_ROWS} rows. It does not
+ * dictionary encode them, because the dictionaries of the IPC file format are written before the first batch, and a
+ * {@link RowWriter} does not know the values of the later rows yet.
+ * <p>
+ * Arrow accesses the direct buffers of java.nio, on java 16 and higher the JVM needs the option
+ * --add-opens=java.base/java.nio=ALL-UNNAMED.
+ */
+class RegisterArrowFile {
+
+    static final String FILE_EXTENSION = ".arrow";
+    static final String STREAM_EXTENSION = ".arrows";
+    static final int BATCH_ROWS = 65536;
+    // distinct strings of a plain string column that are shared by the rows of a batch, e.g. the answers, but not the ids
+    private static final int MAX_DISTINCT_STRINGS = 1024;
+
+    static boolean isArrowFile(String fileName) {
+        return fileName.endsWith(FILE_EXTENSION) || fileName.endsWith(STREAM_EXTENSION);
+    }
+
+    /**
+     * @return all rows of the file
+     */
+    static RegisterCsvData read(String fileName) {
+        List<String[]> rows = new ArrayList<>();
+        String[] header = read(fileName, (columns, batch) -> rows.addAll(batch));
+        return createChunk(header, rows);
+    }
+
+    /**
+     * reads the file in chunks of chunkSize rows and hands every chunk to the consumer, like
+     * {@link RegisterCsvReader#read(String, int, Consumer)}
+     */
+    static void read(String fileName, int chunkSize, Consumer<RegisterCsvData> chunkConsumer) {
+        List<String[]> chunk = new ArrayList<>(chunkSize);
+        String[] header = read(fileName, (columns, batch) -> {
+            for (String[] row : batch) {
+                chunk.add(row);
+                if (chunk.size() == chunkSize) {
+                    chunkConsumer.accept(createChunk(columns, new ArrayList<>(chunk)));
+                    chunk.clear();
+                }
+            }
+        });
+        if (!chunk.isEmpty()) {
+            chunkConsumer.accept(createChunk(header, chunk));
+        }
+    }
+
+    /**
+     * @return the column names of the file
+     */
+    static String[] readHeader(String fileName) {
+        try (BufferAllocator allocator = newAllocator();
+             ArrowReader reader = openReader(fileName, allocator)) {
+            return header(reader.getVectorSchemaRoot().getSchema());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * hands the header and the rows of every record batch to the consumer
+     *
+     * @return the header
+     */
+    private static String[] read(String fileName, BiConsumer<String[], List<String[]>> batchConsumer) {
+        try (BufferAllocator allocator = newAllocator();
+             ArrowReader reader = openReader(fileName, allocator)) {
+            VectorSchemaRoot root = reader.getVectorSchemaRoot();
+            String[] header = header(root.getSchema());
+            while (reader.loadNextBatch()) {
+                int rowCount = root.getRowCount();
+                String[][] values = new String[rowCount][header.length];
+                for (int column = 0; column < header.length; column++) {
+                    FieldVector vector = root.getVector(column);
+                    DictionaryEncoding encoding = vector.getField().getDictionary();
+                    if (vector instanceof VarCharVector) {
+                        readStrings((VarCharVector) vector, rowCount, values, column);
+                        continue;
+                    }
+                    if (encoding == null) {
+                        for (int row = 0; row < rowCount; row++) {
+                            values[row][column] = value(vector, row);
+                        }
+                        continue;
+                    }
+                    String[] dictionary = values(reader.getDictionaryVectors().get(encoding.getId()).getVector());
+                    BaseIntVector codes = (BaseIntVector) vector;
+                    for (int row = 0; row < rowCount; row++) {
+                        values[row][column] = codes.isNull(row) ? "" : dictionary[(int) codes.getValueAsLong(row)];
+                    }
+                }
+                batchConsumer.accept(header, Arrays.asList(values));
+            }
+            return header;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * decodes every distinct string of the first {@link #MAX_DISTINCT_STRINGS} ones of the column only once, the rows
+     * share the decoded strings like the rows of a dictionary encoded column
+     */
+    private static void readStrings(VarCharVector vector, int rowCount, String[][] values, int column) {
+        Map<ArrowBufPointer, String> strings = new HashMap<>();
+        ArrowBufPointer pointer = new ArrowBufPointer();
+        for (int row = 0; row < rowCount; row++) {
+            if (vector.isNull(row)) {
+                values[row][column] = "";
+            } else if (strings.size() == MAX_DISTINCT_STRINGS) {
+                values[row][column] = new String(vector.get(row), StandardCharsets.UTF_8);
+            } else {
+                String value = strings.get(vector.getDataPointer(row, pointer));
+                if (value == null) {
+                    value = new String(vector.get(row), StandardCharsets.UTF_8);
+                    strings.put(pointer, value);
+                    pointer = new ArrowBufPointer();
+                }
+                values[row][column] = value;
+            }
+        }
+    }
+
+    private static BufferAllocator newAllocator() {
+        try {
+            return new RootAllocator();
+        } catch (ExceptionInInitializerError | NoClassDefFoundError e) {
+            throw new IllegalStateException("Arrow could not access the direct buffers, on java 16 and higher the JVM needs "
+                    + "the option --add-opens=java.base/java.nio=ALL-UNNAMED", e);
+        }
+    }
+
+    private static ArrowReader openReader(String fileName, BufferAllocator allocator) throws IOException {
+        FileInputStream input = new FileInputStream(fileName);
+        if (fileName.endsWith(STREAM_EXTENSION)) {
+            return new ArrowStreamReader(input, allocator);
+        }
+        return new ArrowFileReader(input.getChannel(), allocator);
+    }
+
+    private static String[] header(Schema schema) {
+        List<Field> fields = schema.getFields();
+        String[] header = new String[fields.size()];
+        for (int i = 0; i < header.length; i++) {
+            header[i] = fields.get(i).getName();
+        }
+        return header;
+    }
+
+    private static String[] values(ValueVector vector) {
+        String[] values = new String[vector.getValueCount()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = value(vector, i);
+        }
+        return values;
+    }
+
+    private static String value(ValueVector vector, int row) {
+        Object value = vector.getObject(row);
+        return value == null ? "" : value.toString();
+    }
+
+    private static RegisterCsvData createChunk(String[] header, List<String[]> rows) {
+        RegisterCsvData chunk = new RegisterCsvData();
+        chunk.setHeader(header);
+        chunk.setCsvData(rows);
+        return chunk;
+    }
+
+    /**
+     * Appends rows to an Arrow file, the first row is the header. The rows are buffered until a record batch is full, so
+     * the file is only complete after {@link #close()}.
+     */
+    static class Writer implements RowWriter {
+
+        private final FileOutputStream output;
+        private final boolean stream;
+        private final BufferAllocator allocator = newAllocator();
+        private VectorSchemaRoot root;
+        private VarCharVector[] columns;
+        private ArrowWriter writer;
+        private int rowCount;
+
+        Writer(File file) throws IOException {
+            this.output = new FileOutputStream(file);
+            this.stream = file.getName().endsWith(STREAM_EXTENSION);
+        }
+
+        /**
+         * starts the file with the header on the first call and buffers the row in the current batch on every further
+         * call
+         */
+        @Override
+        public void writeNext(String[] line) {
+            if (line == null) {
+                throw new IllegalArgumentException("Rows must not be null");
+            }
+            try {
+                if (root == null) {
+                    start(line);
+                    return;
+                }
+                if (line.length != columns.length) {
+                    throw new IllegalArgumentException("Expected " + columns.length + " values, got " + line.length);
+                }
+                for (int column = 0; column < columns.length; column++) {
+                    if (line[column] == null) {
+                        columns[column].setNull(rowCount);
+                    } else {
+                        columns[column].setSafe(rowCount, line[column].getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+                if (++rowCount == BATCH_ROWS) {
+                    writeBatch();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void start(String[] header) throws IOException {
+            List<Field> fields = new ArrayList<>();
+            for (String column : header) {
+                fields.add(Field.nullable(column, ArrowType.Utf8.INSTANCE));
+            }
+            root = VectorSchemaRoot.create(new Schema(fields), allocator);
+            columns = new VarCharVector[header.length];
+            for (int column = 0; column < header.length; column++) {
+                columns[column] = (VarCharVector) root.getVector(column);
+            }
+            root.allocateNew();
+            writer = stream ? new ArrowStreamWriter(root, null, output) : new ArrowFileWriter(root, null, output.getChannel());
+            writer.start();
+        }
+
+        private void writeBatch() throws IOException {
+            root.setRowCount(rowCount);
+            writer.writeBatch();
+            root.allocateNew();
+            rowCount = 0;
+        }
+
+        /**
+         * writes the buffered rows and the end of the file
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                if (root == null) {
+                    throw new IllegalStateException("No header was written");
+                }
+                if (rowCount > 0) {
+                    writeBatch();
+                }
+                writer.end();
+            } finally {
+                if (writer != null) {
+                    writer.close();
+                }
+                if (root != null) {
+                    root.close();
+                }
+                allocator.close();
+                output.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package net.nora.register;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Columnar binary file of register rows, the alternative to the csv files for files with the extension
+ * {@link #EXTENSION}. The rows are stored in row groups of up to {@link #ROW_GROUP_ROWS} rows. A row group holds every
+ * column as a dictionary of its distinct values followed by the dictionary code of every row, in one, two or four bytes
+ * depending on the dictionary size. The few answers of a symptom column are decoded once per row group instead of once
+ * per row, and the rows share the dictionary strings.
+ * <p>
+ * Layout: magic, format version, the column names and the row groups, each starting with its row count, then a row
+ * count of 0. Strings are written as their byte length and their utf-8 bytes.
+ * <p>
+ * {@link #main} converts a csv file to a columnar or {@link RegisterArrowFile} and back, depending on the extension of
+ * the output file.
+ */
+class RegisterColumnFile {
+
+    static final String EXTENSION = ".rcol";
+    static final int ROW_GROUP_ROWS = 65536;
+
+    private static final int MAGIC = 0x52434f4c;
+    private static final int FORMAT_VERSION = 1;
+
+    static boolean isColumnFile(String fileName) {
+        return fileName.endsWith(EXTENSION);
+    }
+
+    /**
+     * @return all rows of the file
+     */
+    static RegisterCsvData read(String fileName) {
+        List<String[]> rows = new ArrayList<>();
+        String[] header = read(fileName, (columns, rowGroup) -> rows.addAll(rowGroup));
+        return createChunk(header, rows);
+    }
+
+    /**
+     * reads the file in chunks of chunkSize rows and hands every chunk to the consumer, like
+     * {@link RegisterCsvReader#read(String, int, Consumer)}
+     */
+    static void read(String fileName, int chunkSize, Consumer<RegisterCsvData> chunkConsumer) {
+        List<String[]> chunk = new ArrayList<>(chunkSize);
+        String[] header = read(fileName, (columns, rowGroup) -> {
+            for (String[] row : rowGroup) {
+                chunk.add(row);
+                if (chunk.size() == chunkSize) {
+                    chunkConsumer.accept(createChunk(columns, new ArrayList<>(chunk)));
+                    chunk.clear();
+                }
+            }
+        });
+        if (!chunk.isEmpty()) {
+            chunkConsumer.accept(createChunk(header, chunk));
+        }
+    }
+
+    /**
+     * @return the column names of the file
+     */
+    static String[] readHeader(String fileName) {
+        try (DataInputStream input = open(fileName)) {
+            return readHeader(input, fileName);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * hands the header and the rows of every row group to the consumer
+     *
+     * @return the header
+     */
+    private static String[] read(String fileName, BiConsumer<String[], List<String[]>> rowGroupConsumer) {
+        try (DataInputStream input = open(fileName)) {
+            String[] header = readHeader(input, fileName);
+            int columnCount = header.length;
+            int rowCount;
+            while ((rowCount = input.readInt()) > 0) {
+                String[][] values = new String[rowCount][columnCount];
+                byte[] codes = new byte[rowCount * 4];
+                for (int column = 0; column < columnCount; column++) {
+                    String[] dictionary = new String[input.readInt()];
+                    for (int i = 0; i < dictionary.length; i++) {
+                        dictionary[i] = readString(input);
+                    }
+                    int width = codeWidth(dictionary.length);
+                    input.readFully(codes, 0, rowCount * width);
+                    for (int row = 0; row < rowCount; row++) {
+                        values[row][column] = dictionary[code(codes, row, width)];
+                    }
+                }
+                rowGroupConsumer.accept(header, Arrays.asList(values));
+            }
+            return header;
+        } catch (EOFException e) {
+            throw new IllegalArgumentException("Columnar file " + fileName + " is truncated", e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static DataInputStream open(String fileName) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 1 << 16));
+    }
+
+    private static String[] readHeader(DataInputStream input, String fileName) throws IOException {
+        if (input.readInt() != MAGIC) {
+            throw new IllegalArgumentException(fileName + " is not a columnar register file");
+        }
+        int version = input.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IllegalArgumentException(fileName + " has the unsupported format version " + version);
+        }
+        String[] header = new String[input.readInt()];
+        for (int i = 0; i < header.length; i++) {
+            header[i] = readString(input);
+        }
+        return header;
+    }
+
+    private static RegisterCsvData createChunk(String[] header, List<String[]> rows) {
+        RegisterCsvData chunk = new RegisterCsvData();
+        chunk.setHeader(header);
+        chunk.setCsvData(rows);
+        return chunk;
+    }
+
+    /**
+     * @return the number of bytes of the codes of a dictionary of this size
+     */
+    private static int codeWidth(int dictionarySize) {
+        return dictionarySize <= 1 << 8 ? 1 : dictionarySize <= 1 << 16 ? 2 : 4;
+    }
+
+    private static int code(byte[] codes, int row, int width) {
+        switch (width) {
+            case 1:
+                return codes[row] & 0xff;
+            case 2:
+                return (codes[row * 2] & 0xff) << 8 | codes[row * 2 + 1] & 0xff;
+            default:
+                int offset = row * 4;
+                return (codes[offset] & 0xff) << 24 | (codes[offset + 1] & 0xff) << 16
+                        | (codes[offset + 2] & 0xff) << 8 | codes[offset + 3] & 0xff;
+        }
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * Appends rows to a columnar file, the first row is the header. The rows are buffered until a row group is full, so
+     * the file is only complete after {@link #close()}.
+     */
+    static class Writer implements RowWriter {
+
+        private final DataOutputStream output;
+        private final List<String[]> rows = new ArrayList<>(ROW_GROUP_ROWS);
+        private String[] header;
+
+        Writer(File file) throws IOException {
+            this.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        }
+
+        /**
+         * writes the header on the first call and buffers a copy of the row on every further call
+         */
+        @Override
+        public void writeNext(String[] line) {
+            if (line == null) {
+                throw new IllegalArgumentException("Rows must not be null");
+            }
+            try {
+                if (header == null) {
+                    header = line.clone();
+                    output.writeInt(MAGIC);
+                    output.writeInt(FORMAT_VERSION);
+                    output.writeInt(header.length);
+                    for (String column : header) {
+                        writeString(output, column);
+                    }
+                    return;
+                }
+                if (line.length != header.length) {
+                    throw new IllegalArgumentException("Expected " + header.length + " values, got " + line.length);
+                }
+                rows.add(line.clone());
+                if (rows.size() == ROW_GROUP_ROWS) {
+                    writeRowGroup();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void writeRowGroup() throws IOException {
+            output.writeInt(rows.size());
+            byte[] codes = new byte[rows.size() * 4];
+            Map<String, Integer> dictionary = new HashMap<>();
+            List<String> values = new ArrayList<>();
+            for (int column = 0; column < header.length; column++) {
+                dictionary.clear();
+                values.clear();
+                int[] rowCodes = new int[rows.size()];
+                for (int row = 0; row < rows.size(); row++) {
+                    String value = rows.get(row)[column];
+                    // the csv writer writes a missing value as an empty field
+                    String key = value == null ? "" : value;
+                    Integer code = dictionary.get(key);
+                    if (code == null) {
+                        code = values.size();
+                        dictionary.put(key, code);
+                        values.add(key);
+                    }
+                    rowCodes[row] = code;
+                }
+
+                output.writeInt(values.size());
+                for (String value : values) {
+                    writeString(output, value);
+                }
+                int width = codeWidth(values.size());
+                for (int row = 0; row < rowCodes.length; row++) {
+                    for (int i = 0; i < width; i++) {
+                        codes[row * width + i] = (byte) (rowCodes[row] >>> 8 * (width - 1 - i));
+                    }
+                }
+                output.write(codes, 0, rowCodes.length * width);
+            }
+            rows.clear();
+        }
+
+        /**
+         * writes the buffered rows and the end of the file
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                if (header == null) {
+                    throw new IllegalStateException("No header was written");
+                }
+                if (!rows.isEmpty()) {
+                    writeRowGroup();
+                }
+                output.writeInt(0);
+            } finally {
+                output.close();
+            }
+        }
+    }
+
+    /**
+     * converts the csv, columnar or Arrow file args[0] to the csv, columnar or Arrow file args[1], the format of each file
+     * is chosen by its extension
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: RegisterColumnFile <input file> <output file>");
+            System.exit(1);
+        }
+        RegisterCsvReader reader = new RegisterCsvReader();
+        int[] rowCount = new int[1];
+        try (RowWriter writer = RowWriter.open(new File(args[1]))) {
+            writer.writeNext(reader.readHeader(args[0]));
+            reader.read(args[0], ROW_GROUP_ROWS, chunk -> {
+                for (String[] row : chunk.getCsvData()) {
+                    writer.writeNext(row);
+                }
+                rowCount[0] += chunk.getCsvData().size();
+            });
+        }
+        System.out.println("Converted " + rowCount[0] + " rows of " + args[0] + " to " + args[1]);
+    }
+}
@@ -4,59 +4,229 @@ import com.opencsv.*;
 import org.apache.commons.lang3.StringUtils;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
 
 public class RegisterCsvReader {
 
     private static final char SEPARATOR = ',';
+    private static final int PARALLEL_CHUNK_BYTES = 8 * 1024 * 1024;
 
     private boolean printRecords = false;
     private boolean printVasDistribution = false;
+    private File patternTableDirectory;
 
+    /**
+     * writes the answer patterns of every read file with their VAS values to &lt;directory&gt;/&lt;file name&gt;.patterns.csv
+     */
+    public void setPatternTableDirectory(File patternTableDirectory) {
+        this.patternTableDirectory = patternTableDirectory;
+    }
+
+    /**
+     * reads all rows of a csv file, or of a {@link RegisterColumnFile} or a {@link RegisterArrowFile} if the file has one
+     * of their extensions
+     */
     public RegisterCsvData read(final String filename) {
-        List<String[]> csvLines = new ArrayList<>();
-        RegisterCsvData result = new RegisterCsvData();
+        final RegisterCsvData result;
+        try {
+            if (RegisterColumnFile.isColumnFile(filename)) {
+                result = RegisterColumnFile.read(filename);
+            } else if (RegisterArrowFile.isArrowFile(filename)) {
+                result = RegisterArrowFile.read(filename);
+            } else if (Main.INPUT_READ_THREADS == 1) {
+                result = readSequential(filename);
+            } else {
+                int threads = Main.INPUT_READ_THREADS > 0 ? Main.INPUT_READ_THREADS : Runtime.getRuntime().availableProcessors();
+                result = readParallel(filename, threads);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        String[] header = result.getHeader();
+        List<String[]> csvLines = result.getCsvData();
+        if (printRecords) {
+            printRecords(header, csvLines);
+        }
+        int outputHeaderindex = determineHeaderIndex(header, Main.OUTPUT_HEADER_NAME);
+        SymptomPatternIndex patternIndex = new SymptomPatternIndex(header);
+        List<String[]> uniqueLines = recordStatistics(csvLines, outputHeaderindex, patternIndex);
+        if (patternTableDirectory != null) {
+            patternIndex.writeCsv(new File(patternTableDirectory, new File(filename).getName() + ".patterns.csv"));
+        }
+        if (Main.FILTER_DUPLICATES) {
+            result.setCsvData(uniqueLines);
+        }
+        return result;
+    }
+
+    private RegisterCsvData readSequential(final String filename) throws IOException {
         try (final Reader reader = new BufferedReader(new InputStreamReader(
-                new FileInputStream(filename)))) {
+                new FileInputStream(filename), StandardCharsets.UTF_8))) {
 
-            final CSVParser parser = new CSVParserBuilder().withSeparator(SEPARATOR).withIgnoreQuotations(true).build();
-            final CSVReader csvReader = new CSVReaderBuilder(reader).withSkipLines(0).withCSVParser(parser).build();
+            final CSVReader csvReader = createCsvReader(reader);
 
             // Reading Records One by One in a String array
-            String[] nextRecord;
             String[] header = csvReader.readNext();
-            int outputHeaderindex = determineHeaderIndex(header, Main.OUTPUT_HEADER_NAME);
+            String[] nextRecord;
+            List<String[]> csvLines = new ArrayList<>();
+            while ((nextRecord = csvReader.readNext()) != null) {
+                csvLines.add(nextRecord);
+            }
+            return createChunk(header, csvLines);
+        }
+    }
 
-            List<Set<String>> values = new ArrayList<>();
-            for (int i = 0; i < header.length; i++) {
-                values.add(new HashSet<>());
+    /**
+     * splits the file on line boundaries into chunks of about PARALLEL_CHUNK_BYTES, parses the chunks on a fork join pool
+     * and merges the parsed rows in the order of the file
+     */
+    private RegisterCsvData readParallel(final String filename, final int threads) throws IOException {
+        try (final FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long headerEnd = nextLineStart(channel, 0, size);
+            List<String[]> headerLines = parseRange(channel, 0, headerEnd);
+            String[] header = headerLines.isEmpty() ? null : headerLines.get(0);
+
+            List<ForkJoinTask<List<String[]>>> chunks = new ArrayList<>();
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                long chunkStart = headerEnd;
+                while (chunkStart < size) {
+                    final long from = chunkStart;
+                    final long to = nextLineStart(channel, Math.min(from + PARALLEL_CHUNK_BYTES, size), size);
+                    chunks.add(pool.submit(() -> parseRange(channel, from, to)));
+                    chunkStart = to;
+                }
+
+                List<String[]> csvLines = new ArrayList<>();
+                for (ForkJoinTask<List<String[]>> chunk : chunks) {
+                    csvLines.addAll(chunk.get());
+                }
+                return createChunk(header, csvLines);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading " + filename, e);
+            } catch (ExecutionException e) {
+                throw new IOException("Could not read " + filename, e.getCause());
+            } finally {
+                pool.shutdown();
             }
-            while ((nextRecord = csvReader.readNext()) != null) {
-                for (int i = 0; i < nextRecord.length; i++) {
-                    if (printRecords) {
-                        System.out.println(header[i] + ": " + nextRecord[i]);
-                    }
-                    values.get(i).add(nextRecord[i]);
+        }
+    }
+
+    /**
+     * @return the position after the next line break at or after position, or size if there is none
+     */
+    private long nextLineStart(FileChannel channel, long position, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
                 }
-                csvLines.add(nextRecord);
             }
-            if(printRecords){
-                printValues(header, values);
+            position += read;
+        }
+        return size;
+    }
+
+    private List<String[]> parseRange(FileChannel channel, long from, long to) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate((int) (to - from));
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, from + bytes.position()) < 0) {
+                break;
             }
-            List<String[]> uniqueLines = recordStatistics(csvLines, outputHeaderindex);
-            result.setHeader(header);
+        }
+        bytes.flip();
+        final CSVReader csvReader = createCsvReader(new StringReader(StandardCharsets.UTF_8.decode(bytes).toString()));
+        List<String[]> csvLines = new ArrayList<>();
+        String[] nextRecord;
+        while ((nextRecord = csvReader.readNext()) != null) {
+            csvLines.add(nextRecord);
+        }
+        return csvLines;
+    }
 
-            if(Main.FILTER_DUPLICATES){
-                result.setCsvData(uniqueLines);
-            }else{
-                result.setCsvData(csvLines);
+    /**
+     * reads the file in chunks of chunkSize rows and hands every chunk to the consumer, so only one chunk is held in memory
+     * at a time. No statistics are recorded and duplicates are not filtered in this mode.
+     */
+    public void read(final String filename, final int chunkSize, final Consumer<RegisterCsvData> chunkConsumer) {
+        if (RegisterColumnFile.isColumnFile(filename)) {
+            RegisterColumnFile.read(filename, chunkSize, chunkConsumer);
+            return;
+        }
+        if (RegisterArrowFile.isArrowFile(filename)) {
+            RegisterArrowFile.read(filename, chunkSize, chunkConsumer);
+            return;
+        }
+        try (final Reader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(filename), StandardCharsets.UTF_8))) {
+
+            final CSVReader csvReader = createCsvReader(reader);
+            String[] header = csvReader.readNext();
+            String[] nextRecord;
+            List<String[]> csvLines = new ArrayList<>(chunkSize);
+            while ((nextRecord = csvReader.readNext()) != null) {
+                csvLines.add(nextRecord);
+                if (csvLines.size() == chunkSize) {
+                    chunkConsumer.accept(createChunk(header, csvLines));
+                    csvLines = new ArrayList<>(chunkSize);
+                }
+            }
+            if (!csvLines.isEmpty()) {
+                chunkConsumer.accept(createChunk(header, csvLines));
             }
-            return result;
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
     }
 
+    /**
+     * @return the header line of the file
+     */
+    public String[] readHeader(final String filename) {
+        if (RegisterColumnFile.isColumnFile(filename)) {
+            return RegisterColumnFile.readHeader(filename);
+        }
+        if (RegisterArrowFile.isArrowFile(filename)) {
+            return RegisterArrowFile.readHeader(filename);
+        }
+        try (final Reader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(filename), StandardCharsets.UTF_8))) {
+            return createCsvReader(reader).readNext();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private RegisterCsvData createChunk(String[] header, List<String[]> csvLines) {
+        RegisterCsvData chunk = new RegisterCsvData();
+        chunk.setHeader(header);
+        chunk.setCsvData(csvLines);
+        return chunk;
+    }
+
+    private CSVReader createCsvReader(Reader reader) {
+        final CSVParser parser = new CSVParserBuilder().withSeparator(SEPARATOR).withIgnoreQuotations(true).build();
+        return new CSVReaderBuilder(reader).withSkipLines(0).withCSVParser(parser).build();
+    }
+
     private int determineHeaderIndex(String[] header, String outputHeaderName) {
         for (int i = 0; i < header.length; i++) {
             if (header[i].equalsIgnoreCase(outputHeaderName)) {
@@ -66,37 +236,33 @@ public class RegisterCsvReader {
         return -1;
     }
 
-    private List<String[]> recordStatistics(List<String[]> lines, int outputHeaderindex) {
+    private List<String[]> recordStatistics(List<String[]> lines, int outputHeaderindex, SymptomPatternIndex patternIndex) {
         int unknownLines = 0;
         int noVasValueLines = 0;
 
         int[] vasDistribution = new int[11];
 
-        Map<String, String> combinations = new HashMap<>();
-        Map<String, List<String>> confusions = new HashMap<>();
+        // the case ids of the patterns with rows whose VAS differs from the first row of the pattern, by first row
+        Map<Integer, List<String>> confusions = new TreeMap<>();
         List<String[]> uniqueLines = new ArrayList<>();
         int confusionCount = 0;
-        int duplicates = 0;
 
-        for (String[] line : lines) {
+        for (int row = 0; row < lines.size(); row++) {
+            String[] line = lines.get(row);
 
             // find duplicate inputs, that lead to different outputs that could confuse the network
             String caseId = line[0];
             String vasValue = line[outputHeaderindex];
-            List<String> inputValues = new LinkedList<>(Arrays.asList(line));
-            inputValues.remove(outputHeaderindex);
-            inputValues.remove(0);
-            String combinationAsKey = String.join("", inputValues);
-            if (combinations.containsKey(combinationAsKey)) {
-                duplicates++;
-                if (!combinations.get(combinationAsKey).equals(vasValue)) {
+            int firstRow = patternIndex.add(patternIndex.pattern(line), SymptomPatternIndex.vasValue(vasValue), row);
+            if (firstRow == row) {
+                uniqueLines.add(line);
+            } else {
+                String[] firstLine = lines.get(firstRow);
+                if (!firstLine[outputHeaderindex].equals(vasValue)) {
                     confusionCount++;
-                    confusions.get(combinationAsKey).add(caseId);
+                    confusions.computeIfAbsent(firstRow, k -> new ArrayList<>(Collections.singletonList(firstLine[0])))
+                            .add(caseId);
                 }
-            } else {
-                combinations.put(combinationAsKey, vasValue);
-                confusions.put(combinationAsKey, new LinkedList<>(Collections.singletonList(caseId)));
-                uniqueLines.add(line);
             }
 
             for (int i = 0; i < line.length; i++) {
@@ -115,12 +281,11 @@ public class RegisterCsvReader {
         System.out.println("unknown lines: " + unknownLines);
         System.out.println("Missing VAS value lines: " + noVasValueLines);
         System.out.println("Confusions: " + confusionCount);
-        System.out.println("Duplicates: " + duplicates);
+        System.out.println("Duplicates: " + patternIndex.duplicates());
+        System.out.println("Lines with values outside the dictionaries: " + patternIndex.rowsWithoutPattern());
         System.out.println();
         for (List<String> confusionCaseIds : confusions.values()) {
-            if(confusionCaseIds.size() > 1){
-                System.out.println("b_case_id == " + String.join(" | b_case_id == ", confusionCaseIds));
-            }
+            System.out.println("b_case_id == " + String.join(" | b_case_id == ", confusionCaseIds));
         }
         if(printVasDistribution){
             for (int i = 0; i < vasDistribution.length; i++) {
@@ -130,6 +295,20 @@ public class RegisterCsvReader {
         return uniqueLines;
     }
 
+    private void printRecords(String[] header, List<String[]> csvLines) {
+        List<Set<String>> values = new ArrayList<>();
+        for (int i = 0; i < header.length; i++) {
+            values.add(new HashSet<>());
+        }
+        for (String[] csvLine : csvLines) {
+            for (int i = 0; i < csvLine.length; i++) {
+                System.out.println(header[i] + ": " + csvLine[i]);
+                values.get(i).add(csvLine[i]);
+            }
+        }
+        printValues(header, values);
+    }
+
     private void printValues(String[] header, List<Set<String>> values) {
         for (int i = 0; i < values.size(); i++) {
             Set<String> valueLine = values.get(i);
@@ -3,9 +3,12 @@ package net.nora.register;
 import com.opencsv.CSVWriter;
 
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 
 public class RegisterCsvWriter {
 
@@ -23,13 +26,13 @@ public class RegisterCsvWriter {
         if(trainingDataSize < 0){
             write(registerData, verification, 0, registerData.getCsvData().size());
         }else{
-            write(registerData, verification, actualDataSize + 1, registerData.getCsvData().size());
+            write(registerData, verification, actualDataSize, registerData.getCsvData().size());
         }
     }
 
     public void write(RegisterCsvData registerData, String fileName) {
         File dataToClassify = new File(fileName);
-        try (FileWriter fileWriter = new FileWriter(dataToClassify)) {
+        try (Writer fileWriter = new OutputStreamWriter(new FileOutputStream(dataToClassify), StandardCharsets.UTF_8)) {
             CSVWriter writer = new CSVWriter(fileWriter, ',', CSVWriter.NO_QUOTE_CHARACTER);
             writer.writeAll(registerData.getCsvData());
         } catch (IOException e) {
@@ -38,7 +41,7 @@ public class RegisterCsvWriter {
     }
 
     private void write(RegisterCsvData transformed, File train, int from, int to) {
-        try (FileWriter fileWriter = new FileWriter(train)) {
+        try (Writer fileWriter = new OutputStreamWriter(new FileOutputStream(train), StandardCharsets.UTF_8)) {
             CSVWriter writer = new CSVWriter(fileWriter, ',', CSVWriter.NO_QUOTE_CHARACTER);
             writer.writeAll(transformed.getCsvData().subList(from, to));
         } catch (IOException e) {
@@ -0,0 +1,152 @@
+package net.nora.register;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The calculated VAS code and the answer pattern of every case of the last register run, so an incremental run only
+ * calculates the cases that are new or whose answers changed. The state belongs to a model key, a state file of another
+ * model is ignored and all cases are calculated again.
+ */
+class RegisterScoringState {
+
+    private static Logger log = LoggerFactory.getLogger(RegisterScoringState.class);
+
+    private static final int MAGIC = 0x414e4e53;
+    private static final int FORMAT_VERSION = 1;
+    static final int NOT_SCORED = -1;
+
+    private final String modelKey;
+    private final Map<String, ScoredCase> previousCases;
+    private final Map<String, ScoredCase> cases = new LinkedHashMap<>();
+    private int newCases;
+    private int changedCases;
+    private int unchangedCases;
+
+    private RegisterScoringState(String modelKey, Map<String, ScoredCase> previousCases) {
+        this.modelKey = modelKey;
+        this.previousCases = previousCases;
+    }
+
+    /**
+     * @return the state of the state file, or an empty state if there is no state file or it was written for another
+     * model key
+     */
+    static RegisterScoringState load(File stateFile, String modelKey) {
+        Map<String, ScoredCase> previousCases = new HashMap<>();
+        if (!stateFile.isFile()) {
+            log.info("No state file " + stateFile + ", all cases are calculated");
+            return new RegisterScoringState(modelKey, previousCases);
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)))) {
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION || !modelKey.equals(input.readUTF())) {
+                log.info("State file " + stateFile + " belongs to another ann, all cases are calculated");
+                return new RegisterScoringState(modelKey, previousCases);
+            }
+            int size = input.readInt();
+            for (int i = 0; i < size; i++) {
+                String caseId = input.readUTF();
+                previousCases.put(caseId, new ScoredCase(input.readLong(), input.readByte()));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        log.info("Loaded " + previousCases.size() + " calculated cases from state file " + stateFile);
+        return new RegisterScoringState(modelKey, previousCases);
+    }
+
+    /**
+     * @return the VAS code calculated for the case in the last run, or {@link #NOT_SCORED} if the case is new or its
+     * answers changed
+     */
+    int getVasCode(String caseId, long pattern) {
+        ScoredCase previousCase = previousCases.get(caseId);
+        if (previousCase == null) {
+            newCases++;
+            return NOT_SCORED;
+        }
+        if (previousCase.pattern != pattern) {
+            changedCases++;
+            return NOT_SCORED;
+        }
+        unchangedCases++;
+        return previousCase.vasCode;
+    }
+
+    /**
+     * keeps the case for the next run
+     */
+    void put(String caseId, long pattern, int vasCode) {
+        cases.put(caseId, new ScoredCase(pattern, vasCode));
+    }
+
+    /**
+     * @return the number of cases of the last run that are not part of this run
+     */
+    int getRemovedCases() {
+        int removedCases = 0;
+        for (String caseId : previousCases.keySet()) {
+            if (!cases.containsKey(caseId)) {
+                removedCases++;
+            }
+        }
+        return removedCases;
+    }
+
+    /**
+     * writes the cases of this run to a temporary file that replaces the state file when it is complete
+     */
+    void write(File stateFile) {
+        File tempFile = new File(stateFile.getPath() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeUTF(modelKey);
+            output.writeInt(cases.size());
+            for (Map.Entry<String, ScoredCase> scoredCase : cases.entrySet()) {
+                output.writeUTF(scoredCase.getKey());
+                output.writeLong(scoredCase.getValue().pattern);
+                output.writeByte(scoredCase.getValue().vasCode);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        try {
+            Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return newCases + " new, " + changedCases + " changed, " + unchangedCases + " unchanged and "
+                + getRemovedCases() + " removed cases";
+    }
+
+    private static class ScoredCase {
+        private final long pattern;
+        private final int vasCode;
+
+        private ScoredCase(long pattern, int vasCode) {
+            this.pattern = pattern;
+            this.vasCode = vasCode;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package net.nora.register;
+
+import com.opencsv.CSVWriter;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the rows of an output file, the first row is the header.
+ */
+interface RowWriter extends Closeable {
+
+    void writeNext(String[] line);
+
+    /**
+     * @return a writer of a {@link RegisterColumnFile} or a {@link RegisterArrowFile} if the file has one of their
+     * extensions, else of a utf-8 csv file
+     */
+    static RowWriter open(File file) throws IOException {
+        if (RegisterColumnFile.isColumnFile(file.getName())) {
+            return new RegisterColumnFile.Writer(file);
+        }
+        if (RegisterArrowFile.isArrowFile(file.getName())) {
+            return new RegisterArrowFile.Writer(file);
+        }
+        CSVWriter writer = new CSVWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8)), ',', CSVWriter.NO_QUOTE_CHARACTER);
+        return new RowWriter() {
+            @Override
+            public void writeNext(String[] line) {
+                writer.writeNext(line);
+            }
+
+            @Override
+            public void close() throws IOException {
+                writer.close();
+            }
+        };
+    }
+}
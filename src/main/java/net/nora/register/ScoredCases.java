@@ -0,0 +1,158 @@
+package net.nora.register;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * The scored verification or register cases held in columns: one array of feature codes per network input, the case
+ * ids, the actual VAS values and the calculated VAS code and probabilities of every case. The rows of the output csv are
+ * only built while they are written.
+ */
+class ScoredCases {
+
+    static final int NO_VAS_VALUE = -1;
+
+    private final FeatureEncoder encoder;
+    private final int size;
+    // featureCodes[feature][row]
+    private final byte[][] featureCodes;
+    private final long[] patterns;
+    private final String[] caseIds;
+    private final int[] actualVasValues;
+    private final int[] vasCodes;
+    private float[] probabilities;
+    private int classCount;
+
+    private ScoredCases(FeatureEncoder encoder, int size, byte[][] featureCodes, long[] patterns) {
+        this.encoder = encoder;
+        this.size = size;
+        this.featureCodes = featureCodes;
+        this.patterns = patterns;
+        this.caseIds = new String[size];
+        this.actualVasValues = new int[size];
+        this.vasCodes = new int[size];
+        Arrays.fill(actualVasValues, NO_VAS_VALUE);
+    }
+
+    /**
+     * takes the feature codes of the not yet normalized features, encoded by the encoder
+     */
+    static ScoredCases of(INDArray features, FeatureEncoder encoder) {
+        int rows = features.rows();
+        int featureCount = features.columns();
+        if (featureCount != encoder.featureCount()) {
+            throw new IllegalArgumentException("Expected " + encoder.featureCount() + " features, got " + featureCount);
+        }
+        float[] values = toFloats(features);
+        byte[][] featureCodes = new byte[featureCount][rows];
+        long[] patterns = new long[rows];
+        for (int row = 0; row < rows; row++) {
+            int offset = row * featureCount;
+            for (int feature = 0; feature < featureCount; feature++) {
+                featureCodes[feature][row] = (byte) values[offset + feature];
+            }
+            patterns[row] = encoder.pattern(values, offset);
+        }
+        return new ScoredCases(encoder, rows, featureCodes, patterns);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the pattern of the case's features, see {@link FeatureEncoder#pattern(float[], int)}
+     */
+    long pattern(int row) {
+        return patterns[row];
+    }
+
+    /**
+     * takes the probabilities of all cases and sets the VAS code with the highest probability as calculated VAS code
+     */
+    void setOutput(INDArray output) {
+        classCount = output.columns();
+        probabilities = toFloats(output);
+        for (int row = 0; row < size; row++) {
+            int offset = row * classCount;
+            int maxIndex = 0;
+            for (int i = 1; i < classCount; i++) {
+                if (probabilities[offset + i] > probabilities[offset + maxIndex]) {
+                    maxIndex = i;
+                }
+            }
+            vasCodes[row] = maxIndex;
+        }
+    }
+
+    int getVasCode(int row) {
+        return vasCodes[row];
+    }
+
+    /**
+     * sets the VAS code of a case that was calculated before, the case has no probabilities
+     */
+    void setVasCode(int row, int vasCode) {
+        vasCodes[row] = vasCode;
+    }
+
+    float getProbability(int row, int vasCode) {
+        return probabilities[row * classCount + vasCode];
+    }
+
+    /**
+     * takes the case ids in the row order of the cases
+     */
+    void setCaseIds(String[] caseIds) {
+        checkSize(caseIds.length);
+        System.arraycopy(caseIds, 0, this.caseIds, 0, size);
+    }
+
+    /**
+     * takes the actual VAS values in the row order of the cases
+     */
+    void setActualVasValues(int[] actualVasValues) {
+        checkSize(actualVasValues.length);
+        System.arraycopy(actualVasValues, 0, this.actualVasValues, 0, size);
+    }
+
+    private void checkSize(int length) {
+        if (length != size) {
+            throw new IllegalArgumentException("Expected " + size + " values, got " + length);
+        }
+    }
+
+    /**
+     * writes the header and the rows to a csv file, or to a {@link RegisterColumnFile} if the file has its extension
+     */
+    void write(File file) {
+        try (RowWriter writer = RowWriter.open(file)) {
+            writer.writeNext(NeuronalNetwork.OUTPUT_CSV_HEADER);
+            writeRows(writer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void writeRows(RowWriter writer) {
+        String[] line = new String[NeuronalNetwork.OUTPUT_CSV_HEADER.length];
+        for (int row = 0; row < size; row++) {
+            line[0] = String.valueOf(caseIds[row]);
+            for (int feature = 0; feature < featureCodes.length; feature++) {
+                line[feature + 1] = encoder.decode(feature, featureCodes[feature][row]);
+            }
+            line[line.length - 2] = actualVasValues[row] == NO_VAS_VALUE ? "null" : String.valueOf(actualVasValues[row]);
+            line[line.length - 1] = FeatureEncoder.decodeVas(vasCodes[row]);
+            writer.writeNext(line);
+        }
+    }
+
+    private static float[] toFloats(INDArray array) {
+        boolean rowMajor = array.ordering() == 'c' && !array.isView() && array.data().length() == array.length();
+        return (rowMajor ? array : array.dup('c')).data().asFloat();
+    }
+}
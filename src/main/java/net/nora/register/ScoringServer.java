@@ -0,0 +1,378 @@
+package net.nora.register;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.opencsv.CSVReader;
+import com.opencsv.CSVWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Local http server that scores register cases with a model and normalizer that are loaded only once. It listens on
+ * the loopback interface unless another bind address is given, the cases are not authenticated.
+ * <p>
+ * POST /score accepts a json object, a json array of objects or csv rows with a header line (Content-Type text/csv),
+ * using the column names of the register file. VAS_MK is ignored and b_case_id is optional. The response contains
+ * vas_score_ann and the probability of every VAS value for each case, as json or csv matching the request.
+ * <p>
+ * The requests are parsed and encoded on the http thread pool, a single scoring thread collects the rows of concurrent
+ * requests into micro batches of up to batchSize rows for one {@link MultiLayerNetwork#output} call. With a
+ * {@link PredictionCache} only the patterns that were not scored before are calculated, GET /stats shows its counters.
+ */
+class ScoringServer {
+
+    private static Logger log = LoggerFactory.getLogger(ScoringServer.class);
+
+    private final MultiLayerNetwork model;
+    private final DataNormalization normalizer;
+    private final String[] header;
+    private final FeatureEncoder encoder;
+    private final int batchSize;
+    private final long maxBatchWaitMillis;
+    private final PredictionCache predictionCache;
+    private final BlockingQueue<PendingRows> pendingRows = new LinkedBlockingQueue<>();
+
+    private HttpServer server;
+    private ExecutorService httpExecutor;
+    private Thread scoringThread;
+
+    /**
+     * @param header          the register csv header, defines the columns of the scored cases
+     * @param predictionCache the cache of the scored patterns, or null to calculate every row
+     */
+    ScoringServer(MultiLayerNetwork model, DataNormalization normalizer, String[] header, int batchSize, long maxBatchWaitMillis,
+                  PredictionCache predictionCache) {
+        this.model = model;
+        this.normalizer = normalizer;
+        this.header = header;
+        this.encoder = FeatureEncoder.forHeader(header);
+        this.batchSize = batchSize;
+        this.maxBatchWaitMillis = maxBatchWaitMillis;
+        this.predictionCache = predictionCache;
+    }
+
+    /**
+     * @param bindAddress the host name or ip address to listen on, empty for the loopback address
+     */
+    void start(String bindAddress, int port, int threads) throws IOException {
+        InetAddress address = bindAddress.isEmpty() ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bindAddress);
+        server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        httpExecutor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(httpExecutor);
+        server.createContext("/score", this::handleScore);
+        server.createContext("/health", exchange -> respond(exchange, 200, "text/plain", "ok"));
+        server.createContext("/stats", exchange -> respond(exchange, 200, "text/plain",
+                predictionCache == null ? "prediction cache disabled" : predictionCache.toString()));
+
+        scoringThread = new Thread(this::scoreBatches, "scoring-server-batches");
+        scoringThread.setDaemon(true);
+        scoringThread.start();
+        server.start();
+        log.info("Scoring server listening on " + address.getHostAddress() + ":" + port + " with " + threads + " threads");
+    }
+
+    void stop() {
+        server.stop(0);
+        httpExecutor.shutdown();
+        scoringThread.interrupt();
+    }
+
+    private void handleScore(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "text/plain", "Only POST is supported");
+                return;
+            }
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            boolean csv = contentType != null && contentType.startsWith("text/csv");
+            String body = readBody(exchange.getRequestBody());
+
+            List<String[]> rows = csv ? parseCsvRows(body) : parseJsonRows(body);
+            float[][] probabilities = score(rows);
+            if (csv) {
+                respond(exchange, 200, "text/csv", toCsv(rows, probabilities));
+            } else {
+                respond(exchange, 200, "application/json", toJson(rows, probabilities));
+            }
+        } catch (IllegalArgumentException | JsonParseException e) {
+            respond(exchange, 400, "text/plain", e.getMessage());
+        } catch (Exception e) {
+            log.error("Scoring failed", e);
+            respond(exchange, 500, "text/plain", "Scoring failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the probabilities of every VAS value for every row
+     */
+    private float[][] score(List<String[]> rows) throws InterruptedException, ExecutionException {
+        if (rows.isEmpty()) {
+            return new float[0][];
+        }
+        int featureCount = encoder.featureCount();
+        float[] features = new float[rows.size() * featureCount];
+        for (int i = 0; i < rows.size(); i++) {
+            encoder.encode(rows.get(i), features, i * featureCount);
+        }
+        PendingRows pending = new PendingRows(features, rows.size());
+        pendingRows.put(pending);
+        return pending.probabilities.get();
+    }
+
+    /**
+     * runs on the scoring thread, takes the waiting rows of up to batchSize rows and scores them at once
+     */
+    private void scoreBatches() {
+        int featureCount = encoder.featureCount();
+        List<PendingRows> batch = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.clear();
+                PendingRows first = pendingRows.take();
+                batch.add(first);
+                int rowCount = first.rowCount;
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxBatchWaitMillis);
+                while (rowCount < batchSize) {
+                    PendingRows next = pendingRows.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    rowCount += next.rowCount;
+                }
+
+                float[] features = new float[rowCount * featureCount];
+                int offset = 0;
+                for (PendingRows pending : batch) {
+                    System.arraycopy(pending.features, 0, features, offset, pending.features.length);
+                    offset += pending.features.length;
+                }
+                try {
+                    INDArray featureMatrix = Nd4j.create(features, new int[]{rowCount, featureCount}, 'c');
+                    final INDArray output;
+                    if (predictionCache != null) {
+                        ScoredCases cases = ScoredCases.of(featureMatrix, encoder);
+                        normalizer.transform(featureMatrix);
+                        // a single request can hold more than server.batch.size rows
+                        output = predictionCache.output(model, featureMatrix, cases, batchSize);
+                    } else {
+                        normalizer.transform(featureMatrix);
+                        output = NeuronalNetwork.output(model, featureMatrix, batchSize);
+                    }
+
+                    Main.METRICS.increment("server.batches", 1);
+                    Main.METRICS.increment("server.rows", rowCount);
+
+                    int row = 0;
+                    for (PendingRows pending : batch) {
+                        float[][] probabilities = new float[pending.rowCount][];
+                        for (int i = 0; i < pending.rowCount; i++) {
+                            probabilities[i] = output.getRow(row++).toFloatVector();
+                        }
+                        pending.probabilities.complete(probabilities);
+                    }
+                } catch (RuntimeException e) {
+                    for (PendingRows pending : batch) {
+                        pending.probabilities.completeExceptionally(e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private List<String[]> parseJsonRows(String body) {
+        JsonElement json = new JsonParser().parse(body);
+        List<String[]> rows = new ArrayList<>();
+        if (json.isJsonArray()) {
+            for (JsonElement element : json.getAsJsonArray()) {
+                if (!element.isJsonObject()) {
+                    throw new IllegalArgumentException("Expected a json object as row " + rows.size() + " of the array");
+                }
+                rows.add(toRow(element.getAsJsonObject(), rows.size()));
+            }
+        } else if (json.isJsonObject()) {
+            rows.add(toRow(json.getAsJsonObject(), 0));
+        } else {
+            throw new IllegalArgumentException("Expected a json object or array of objects");
+        }
+        return rows;
+    }
+
+    private String[] toRow(JsonObject values, int rowNumber) {
+        String[] row = new String[header.length];
+        for (Map.Entry<String, JsonElement> field : values.entrySet()) {
+            int column = column(field.getKey());
+            JsonElement value = field.getValue();
+            if (column < 0 || value.isJsonNull()) {
+                continue;
+            }
+            if (!value.isJsonPrimitive()) {
+                throw new IllegalArgumentException("Expected a string or number for " + field.getKey() + " in row " + rowNumber);
+            }
+            row[column] = value.getAsString();
+        }
+        return completeRow(row, rowNumber);
+    }
+
+    private List<String[]> parseCsvRows(String body) throws IOException {
+        CSVReader csvReader = new CSVReader(new StringReader(body));
+        String[] requestHeader = csvReader.readNext();
+        if (requestHeader == null) {
+            throw new IllegalArgumentException("Missing csv header");
+        }
+        int[] requestColumns = new int[header.length];
+        Arrays.fill(requestColumns, -1);
+        for (int j = 0; j < requestHeader.length; j++) {
+            int column = column(requestHeader[j]);
+            if (column >= 0) {
+                requestColumns[column] = j;
+            }
+        }
+
+        List<String[]> rows = new ArrayList<>();
+        String[] csvLine;
+        while ((csvLine = csvReader.readNext()) != null) {
+            String[] row = new String[header.length];
+            for (int i = 0; i < header.length; i++) {
+                row[i] = requestColumns[i] >= 0 && requestColumns[i] < csvLine.length ? csvLine[requestColumns[i]] : null;
+            }
+            rows.add(completeRow(row, rows.size()));
+        }
+        return rows;
+    }
+
+    /**
+     * @return the column of the register header with the name of a json field or csv column of a request, ignoring case
+     * and surrounding spaces, or -1
+     */
+    private int column(String requestName) {
+        String name = requestName.trim();
+        for (int i = 0; i < header.length; i++) {
+            if (header[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * sets the defaults of the case id and the VAS value and checks that all network inputs are present and known, like
+     * the calculation of the register file
+     */
+    private String[] completeRow(String[] row, int rowNumber) {
+        if (row[0] == null || row[0].isEmpty()) {
+            row[0] = String.valueOf(rowNumber);
+        }
+        for (int i = 1; i < header.length; i++) {
+            if (header[i].equalsIgnoreCase(Main.OUTPUT_HEADER_NAME)) {
+                row[i] = "0";
+            } else if (row[i] == null || row[i].isEmpty()) {
+                throw new IllegalArgumentException("Missing value for " + header[i] + " in case " + row[0]);
+            }
+        }
+        if (Main.shouldRemoveRegisterData(row)) {
+            throw new IllegalArgumentException("Case " + row[0] + " has unknown answers, they are not calculated");
+        }
+        return row;
+    }
+
+    private String toJson(List<String[]> rows, float[][] probabilities) {
+        JsonArray result = new JsonArray();
+        for (int i = 0; i < rows.size(); i++) {
+            JsonObject scoredCase = new JsonObject();
+            scoredCase.addProperty(header[0], rows.get(i)[0]);
+            scoredCase.addProperty("vas_score_ann", FeatureEncoder.decodeVas(maxIndex(probabilities[i])));
+            JsonObject vasProbabilities = new JsonObject();
+            for (int j = 0; j < probabilities[i].length; j++) {
+                vasProbabilities.addProperty(FeatureEncoder.decodeVas(j), probabilities[i][j]);
+            }
+            scoredCase.add("probabilities", vasProbabilities);
+            result.add(scoredCase);
+        }
+        return result.toString();
+    }
+
+    private String toCsv(List<String[]> rows, float[][] probabilities) {
+        StringWriter csv = new StringWriter();
+        CSVWriter writer = new CSVWriter(csv, ',', CSVWriter.NO_QUOTE_CHARACTER);
+        int classCount = probabilities.length > 0 ? probabilities[0].length : Main.VAS_VALUE_COUNT;
+        String[] responseHeader = new String[2 + classCount];
+        responseHeader[0] = header[0];
+        responseHeader[1] = "vas_score_ann";
+        for (int j = 0; j < classCount; j++) {
+            responseHeader[2 + j] = "probability_vas_" + FeatureEncoder.decodeVas(j);
+        }
+        writer.writeNext(responseHeader);
+        for (int i = 0; i < rows.size(); i++) {
+            String[] line = new String[responseHeader.length];
+            line[0] = rows.get(i)[0];
+            line[1] = FeatureEncoder.decodeVas(maxIndex(probabilities[i]));
+            for (int j = 0; j < classCount; j++) {
+                line[2 + j] = String.valueOf(probabilities[i][j]);
+            }
+            writer.writeNext(line);
+        }
+        return csv.toString();
+    }
+
+    private static int maxIndex(float[] vals) {
+        int maxIndex = 0;
+        for (int i = 1; i < vals.length; i++) {
+            if (vals[i] > vals[maxIndex]) {
+                maxIndex = i;
+            }
+        }
+        return maxIndex;
+    }
+
+    private static String readBody(InputStream body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = body.read(buffer)) > 0) {
+            bytes.write(buffer, 0, read);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream responseBody = exchange.getResponseBody()) {
+            responseBody.write(bytes);
+        }
+    }
+
+    private static class PendingRows {
+        final float[] features;
+        final int rowCount;
+        final CompletableFuture<float[][]> probabilities = new CompletableFuture<>();
+
+        PendingRows(float[] features, int rowCount) {
+            this.features = features;
+            this.rowCount = rowCount;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package net.nora.register;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.stream.IntStream;
+
+/**
+ * Scores the register chunk by chunk and appends every scored chunk to the output csv or columnar file,
+ * so only the current chunk is held in memory. The output of a chunk is calculated in batches of batchSize rows.
+ */
+class StreamingRegisterScorer implements Closeable {
+
+    private final MultiLayerNetwork model;
+    private final DataNormalization normalizer;
+    private final FeatureEncoder encoder;
+    private final RowWriter writer;
+    private final PredictionCache predictionCache;
+    private final int batchSize;
+    private int scoredRows;
+
+    /**
+     * @param encoder         the encoder of the register chunks
+     * @param predictionCache the cache of the scored patterns of all chunks, or null to calculate every row
+     * @param batchSize       the number of rows per model output call, 0 calculates a chunk with one call
+     */
+    StreamingRegisterScorer(MultiLayerNetwork model, DataNormalization normalizer, FeatureEncoder encoder, File outputFile, PredictionCache predictionCache, int batchSize) throws IOException {
+        this.model = model;
+        this.normalizer = normalizer;
+        this.encoder = encoder;
+        this.predictionCache = predictionCache;
+        this.batchSize = batchSize;
+        this.writer = RowWriter.open(outputFile);
+        writer.writeNext(NeuronalNetwork.OUTPUT_CSV_HEADER);
+    }
+
+    void score(DataSet registerData, String[] caseIds) {
+        write(calculate(registerData, caseIds));
+    }
+
+    /**
+     * calculates the output of the chunk without writing it, see {@link #write(ScoredCases)}
+     */
+    ScoredCases calculate(DataSet registerData, String[] caseIds) {
+        // keep the feature codes prior to normalization, because it changes the data.
+        ScoredCases registerCases = ScoredCases.of(registerData.getFeatures(), encoder);
+        normalizer.transform(registerData);
+
+        registerCases.setOutput(output(registerData.getFeatures(), registerCases));
+        registerCases.setCaseIds(caseIds);
+        return registerCases;
+    }
+
+    /**
+     * appends the calculated rows to the output csv
+     */
+    void write(ScoredCases registerCases) {
+        registerCases.writeRows(writer);
+        scoredRows += registerCases.size();
+        Main.METRICS.increment("score.rows", registerCases.size());
+    }
+
+    /**
+     * calculates the rows whose VAS code is {@link RegisterScoringState#NOT_SCORED} and sets their VAS codes, the other
+     * rows keep the given VAS code. All rows are written.
+     */
+    void score(DataSet registerData, String[] caseIds, int[] vasCodes) {
+        ScoredCases registerCases = ScoredCases.of(registerData.getFeatures(), encoder);
+        int[] rowsToScore = IntStream.range(0, vasCodes.length)
+                .filter(row -> vasCodes[row] == RegisterScoringState.NOT_SCORED)
+                .toArray();
+        if (rowsToScore.length > 0) {
+            INDArray features = registerData.getFeatures().getRows(rowsToScore);
+            ScoredCases casesToScore = ScoredCases.of(features, encoder);
+            normalizer.transform(features);
+            casesToScore.setOutput(output(features, casesToScore));
+            for (int i = 0; i < rowsToScore.length; i++) {
+                vasCodes[rowsToScore[i]] = casesToScore.getVasCode(i);
+            }
+        }
+        for (int row = 0; row < vasCodes.length; row++) {
+            registerCases.setVasCode(row, vasCodes[row]);
+        }
+        registerCases.setCaseIds(caseIds);
+        write(registerCases);
+    }
+
+    private INDArray output(INDArray normalizedFeatures, ScoredCases cases) {
+        if (predictionCache != null) {
+            return predictionCache.output(model, normalizedFeatures, cases, batchSize);
+        }
+        return NeuronalNetwork.output(model, normalizedFeatures, batchSize);
+    }
+
+    int getScoredRows() {
+        return scoredRows;
+    }
+
+    PredictionCache getPredictionCache() {
+        return predictionCache;
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
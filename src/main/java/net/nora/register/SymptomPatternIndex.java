@@ -0,0 +1,268 @@
+package net.nora.register;
+
+import com.opencsv.CSVWriter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Counts the VAS values of every answer pattern of a register or training file. A pattern holds the dictionary codes of
+ * all network inputs of a row bit packed into one long, e.g. 2 bits per yes/no/unknown symptom and 3 bits for the
+ * elicitor, and is the key of an open addressing hash table with one VAS histogram per pattern. Rows are added one by
+ * one, so the index can be filled while a file is read. Rows with a value that is not part of its column's dictionary
+ * have no pattern, they are counted as distinct rows but not indexed.
+ */
+class SymptomPatternIndex {
+
+    private static final long EMPTY = -1L;
+    private static final int INITIAL_CAPACITY = 1024;
+    // VAS values 0 to 10 and one bucket for rows without VAS value
+    static final int NO_VAS_VALUE = 11;
+    private static final int VAS_BUCKETS = NO_VAS_VALUE + 1;
+
+    private final String[] header;
+    private final FeatureEncoder encoder;
+
+    private long[] patterns;
+    private int[] firstRows;
+    private int[] rowCounts;
+    // vasCounts[slot * VAS_BUCKETS + vas]
+    private int[] vasCounts;
+    private int size;
+    private int rows;
+    private int rowsWithoutPattern;
+
+    SymptomPatternIndex(String[] header) {
+        this.header = header;
+        this.encoder = FeatureEncoder.forHeader(header);
+        if (encoder.patternBitCount() > 63) {
+            throw new IllegalArgumentException("The answers of " + encoder.featureCount() + " columns need "
+                    + encoder.patternBitCount() + " bits, a pattern holds 63");
+        }
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @return the bit packed answers of the network inputs of the csv row, or {@link FeatureEncoder#NO_PATTERN}
+     */
+    long pattern(String[] csvLine) {
+        return encoder.patternOrNone(csvLine);
+    }
+
+    /**
+     * @return the bit packed codes of the encoded network inputs at features[offset], or {@link FeatureEncoder#NO_PATTERN}
+     */
+    long pattern(float[] features, int offset) {
+        return encoder.pattern(features, offset);
+    }
+
+    /**
+     * counts the row with the pattern and the VAS value, 0 to 10 or {@link #NO_VAS_VALUE}
+     *
+     * @return the first added row of the pattern, or row if the pattern is new or {@link FeatureEncoder#NO_PATTERN}
+     */
+    int add(long pattern, int vasValue, int row) {
+        if (pattern == FeatureEncoder.NO_PATTERN) {
+            rowsWithoutPattern++;
+            rows++;
+            return row;
+        }
+        int slot = slot(pattern);
+        if (patterns[slot] == EMPTY) {
+            if (2 * (size + 1) > patterns.length) {
+                resize();
+                slot = slot(pattern);
+            }
+            patterns[slot] = pattern;
+            firstRows[slot] = row;
+            size++;
+        }
+        rowCounts[slot]++;
+        vasCounts[slot * VAS_BUCKETS + vasValue]++;
+        rows++;
+        return firstRows[slot];
+    }
+
+    /**
+     * @return the VAS bucket of a csv VAS value
+     */
+    static int vasValue(String csvValue) {
+        return csvValue == null || csvValue.isEmpty() ? NO_VAS_VALUE : Integer.parseInt(csvValue);
+    }
+
+    /**
+     * @return the number of different patterns
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of added rows whose pattern was added before
+     */
+    int duplicates() {
+        return rows - rowsWithoutPattern - size;
+    }
+
+    /**
+     * @return the number of added rows without pattern, see {@link FeatureEncoder#patternOrNone}
+     */
+    int rowsWithoutPattern() {
+        return rowsWithoutPattern;
+    }
+
+    int rowCount(long pattern) {
+        int slot = slot(pattern);
+        return patterns[slot] == EMPTY ? 0 : rowCounts[slot];
+    }
+
+    int vasCount(long pattern, int vasValue) {
+        int slot = slot(pattern);
+        return patterns[slot] == EMPTY ? 0 : vasCounts[slot * VAS_BUCKETS + vasValue];
+    }
+
+    /**
+     * @return true if the rows of the pattern have more than one VAS value
+     */
+    boolean isConfusion(long pattern) {
+        int slot = slot(pattern);
+        return patterns[slot] != EMPTY && vasValueCount(slot) > 1;
+    }
+
+    /**
+     * @return the number of patterns whose rows have more than one VAS value
+     */
+    int confusions() {
+        int confusions = 0;
+        for (int slot = 0; slot < patterns.length; slot++) {
+            if (patterns[slot] != EMPTY && vasValueCount(slot) > 1) {
+                confusions++;
+            }
+        }
+        return confusions;
+    }
+
+    /**
+     * @return all patterns in the order of their first rows
+     */
+    long[] patterns() {
+        // the first row in the upper and the slot in the lower half, so the slots are sorted by their first rows
+        long[] rowsAndSlots = new long[size];
+        int count = 0;
+        for (int slot = 0; slot < patterns.length; slot++) {
+            if (patterns[slot] != EMPTY) {
+                rowsAndSlots[count++] = ((long) firstRows[slot] << 32) | slot;
+            }
+        }
+        Arrays.sort(rowsAndSlots);
+        for (int i = 0; i < rowsAndSlots.length; i++) {
+            rowsAndSlots[i] = patterns[(int) rowsAndSlots[i]];
+        }
+        return rowsAndSlots;
+    }
+
+    /**
+     * writes one line per pattern in the order of their first rows: the answers, the number of rows and the number of
+     * rows per VAS value
+     */
+    void writeCsv(File file) {
+        try (CSVWriter writer = new CSVWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8)), ',', CSVWriter.NO_QUOTE_CHARACTER)) {
+            writer.writeNext(tableHeader());
+            String[] line = new String[encoder.featureCount() + 1 + VAS_BUCKETS];
+            for (long pattern : patterns()) {
+                int slot = slot(pattern);
+                decode(pattern, line);
+                line[encoder.featureCount()] = String.valueOf(rowCounts[slot]);
+                for (int vas = 0; vas < VAS_BUCKETS; vas++) {
+                    line[encoder.featureCount() + 1 + vas] = String.valueOf(vasCounts[slot * VAS_BUCKETS + vas]);
+                }
+                writer.writeNext(line);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    int featureCount() {
+        return encoder.featureCount();
+    }
+
+    /**
+     * writes the csv values of the pattern's answers to line[0, featureCount())
+     */
+    void decode(long pattern, String[] line) {
+        encoder.decodePattern(pattern, line);
+    }
+
+    private String[] tableHeader() {
+        String[] tableHeader = new String[encoder.featureCount() + 1 + VAS_BUCKETS];
+        for (int i = 0; i < encoder.featureCount(); i++) {
+            tableHeader[i] = header[encoder.column(i)];
+        }
+        tableHeader[encoder.featureCount()] = "rows";
+        for (int vas = 0; vas < NO_VAS_VALUE; vas++) {
+            tableHeader[encoder.featureCount() + 1 + vas] = "vas_" + vas;
+        }
+        tableHeader[tableHeader.length - 1] = "vas_missing";
+        return tableHeader;
+    }
+
+    private int vasValueCount(int slot) {
+        int values = 0;
+        for (int vas = 0; vas < NO_VAS_VALUE; vas++) {
+            if (vasCounts[slot * VAS_BUCKETS + vas] > 0) {
+                values++;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return the slot of the pattern, or the empty slot where it belongs
+     */
+    private int slot(long pattern) {
+        int mask = patterns.length - 1;
+        int slot = hash(pattern) & mask;
+        while (patterns[slot] != EMPTY && patterns[slot] != pattern) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int hash(long pattern) {
+        long hash = pattern * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private void allocate(int capacity) {
+        patterns = new long[capacity];
+        Arrays.fill(patterns, EMPTY);
+        firstRows = new int[capacity];
+        rowCounts = new int[capacity];
+        vasCounts = new int[capacity * VAS_BUCKETS];
+    }
+
+    private void resize() {
+        long[] oldPatterns = patterns;
+        int[] oldFirstRows = firstRows;
+        int[] oldRowCounts = rowCounts;
+        int[] oldVasCounts = vasCounts;
+        allocate(2 * oldPatterns.length);
+        for (int oldSlot = 0; oldSlot < oldPatterns.length; oldSlot++) {
+            if (oldPatterns[oldSlot] != EMPTY) {
+                int slot = slot(oldPatterns[oldSlot]);
+                patterns[slot] = oldPatterns[oldSlot];
+                firstRows[slot] = oldFirstRows[oldSlot];
+                rowCounts[slot] = oldRowCounts[oldSlot];
+                System.arraycopy(oldVasCounts, oldSlot * VAS_BUCKETS, vasCounts, slot * VAS_BUCKETS, VAS_BUCKETS);
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package net.nora.register;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checkpoints of a training run in a directory, so a run that was killed can be resumed instead of trained from scratch.
+ * A checkpoint is due every checkpointEpochs epochs or checkpointMinutes minutes. The model is cloned on the training
+ * thread and written with its updater state and normalizer by a background thread, a checkpoint that is due while the
+ * previous one is still written is skipped. Every checkpoint is written to a temporary file that replaces the
+ * checkpoint file when it is complete, only the last keep checkpoints are kept.
+ * <p>
+ * A checkpoint holds the number of trained epochs and the learning rate in the model file. The random order of the mini
+ * batches is not stored, it is restored by repeating the shuffles of the trained epochs with the training seed.
+ */
+class TrainingCheckpoints implements AutoCloseable {
+
+    private static Logger log = LoggerFactory.getLogger(TrainingCheckpoints.class);
+
+    private static final String STATE_KEY = "checkpoint";
+    private static final String PREFIX = "checkpoint_";
+    private static final String SUFFIX = ".nnet";
+
+    private final File directory;
+    private final String configKey;
+    private final DataNormalization normalizer;
+    private final int checkpointEpochs;
+    private final long checkpointMillis;
+    private final int keep;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "checkpoint-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Future<?> pendingWrite;
+    private long lastCheckpointMillis = System.currentTimeMillis();
+
+    /**
+     * @param configKey        the settings of the training run, a checkpoint of other settings is not resumed
+     * @param checkpointEpochs the epochs between two checkpoints, 0 to not count epochs
+     * @param checkpointMinutes the minutes between two checkpoints, 0 to not count minutes
+     */
+    TrainingCheckpoints(File directory, String configKey, DataNormalization normalizer, int checkpointEpochs,
+                        long checkpointMinutes, int keep) {
+        if (keep < 1) {
+            throw new IllegalArgumentException("At least one checkpoint must be kept, not " + keep);
+        }
+        this.directory = directory;
+        this.configKey = configKey;
+        this.normalizer = normalizer;
+        this.checkpointEpochs = checkpointEpochs;
+        this.checkpointMillis = checkpointMinutes * 60 * 1000;
+        this.keep = keep;
+        directory.mkdirs();
+    }
+
+    /**
+     * @return the latest checkpoint of this training run's settings, or null if there is none
+     */
+    Checkpoint loadLatest() {
+        File[] files = checkpointFiles();
+        for (int i = files.length - 1; i >= 0; i--) {
+            State state = ModelSerializer.getObjectFromFile(files[i], STATE_KEY);
+            if (state == null || !configKey.equals(state.configKey)) {
+                log.warn("Ignoring checkpoint " + files[i] + ", it was written for other training settings");
+                continue;
+            }
+            try {
+                MultiLayerNetwork model = MultiLayerNetwork.load(files[i], true);
+                log.info("Resuming the training after epoch " + state.epoch + " from checkpoint " + files[i]);
+                return new Checkpoint(model, state.epoch, state.learningRate);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param epochs the number of trained epochs
+     */
+    boolean isDue(int epochs) {
+        return (checkpointEpochs > 0 && epochs % checkpointEpochs == 0)
+                || (checkpointMillis > 0 && System.currentTimeMillis() - lastCheckpointMillis >= checkpointMillis);
+    }
+
+    /**
+     * snapshots the model and writes it in the background
+     *
+     * @param epochs       the number of trained epochs
+     * @param learningRate the learning rate of the next epoch
+     */
+    void save(MultiLayerNetwork model, int epochs, double learningRate) {
+        lastCheckpointMillis = System.currentTimeMillis();
+        if (pendingWrite != null && !pendingWrite.isDone()) {
+            log.info("Skipping the checkpoint of epoch " + epochs + ", the previous checkpoint is still written");
+            return;
+        }
+        checkPendingWrite();
+        MultiLayerNetwork snapshot = model.clone();
+        State state = new State(configKey, epochs, learningRate);
+        pendingWrite = writer.submit(() -> write(snapshot, state));
+    }
+
+    private void write(MultiLayerNetwork snapshot, State state) {
+        File file = new File(directory, String.format("%s%09d%s", PREFIX, state.epoch, SUFFIX));
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            ModelSerializer.writeModel(snapshot, tempFile, true, normalizer);
+            ModelSerializer.addObjectToFile(tempFile, STATE_KEY, state);
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Main.METRICS.increment("training.checkpoints", 1);
+        log.info("Wrote the checkpoint of epoch " + state.epoch + " to: " + file);
+
+        File[] files = checkpointFiles();
+        for (int i = 0; i < files.length - keep; i++) {
+            if (!files[i].delete()) {
+                log.warn("Could not delete the old checkpoint " + files[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the checkpoint files from the oldest to the latest
+     */
+    private File[] checkpointFiles() {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        // the zero padded epoch sorts the names by epoch
+        Arrays.sort(files);
+        return files;
+    }
+
+    private void checkPendingWrite() {
+        if (pendingWrite == null) {
+            return;
+        }
+        try {
+            pendingWrite.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while writing a checkpoint", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Writing a checkpoint failed", e.getCause());
+        }
+    }
+
+    /**
+     * waits until the pending checkpoint is written
+     */
+    @Override
+    public void close() {
+        try {
+            checkPendingWrite();
+        } finally {
+            writer.shutdown();
+        }
+    }
+
+    static class Checkpoint {
+        final MultiLayerNetwork model;
+        final int epoch;
+        final double learningRate;
+
+        private Checkpoint(MultiLayerNetwork model, int epoch, double learningRate) {
+            this.model = model;
+            this.epoch = epoch;
+            this.learningRate = learningRate;
+        }
+    }
+
+    private static class State implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String configKey;
+        private final int epoch;
+        private final double learningRate;
+
+        private State(String configKey, int epoch, double learningRate) {
+            this.configKey = configKey;
+            this.epoch = epoch;
+            this.learningRate = learningRate;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package net.nora.register;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FeatureEncoderTest {
+
+    private static final String[] HEADER = ("b_case_id,skin,q_111_angioedema,pharynx_larynx,abdomin,q_112_nausea,"
+            + "q_112_vomiting,q_112_diarrhoea,q_112_incontinence,q_113_dyspnea,q_113_chest_tightness_v5,q_113_cough_v5,"
+            + "q_113_wheezing_expiratory_distre,q_113_stridor_inspiratory,q_113_respiratory_arrest,"
+            + "q_114_hypotension_collapse_v5,q_114_dizziness,q_114_tachycardia,q_114_palpitations_cardiac_arryt,"
+            + "q_114_chest_pain_angina_v5,q_114_reductions_of_alertness,q_114_loss_of_consciousness,"
+            + "q_114_cardiac_arrest,kind,d_elicitor_gr5,VAS_MK").split(",");
+
+    @Test
+    public void patternOfEncodedFeaturesIsPatternOfCsvValues() {
+        FeatureEncoder encoder = FeatureEncoder.forHeader(HEADER);
+        String[][] rows = {
+                "1,no,no,no,no,no,no,no,no,no,no,no,no,no,yes,yes,no,no,no,no,no,yes,yes,no,insects,5".split(","),
+                "2,yes,unknown,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,yes,food,8".split(","),
+                "3,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,unkown,3".split(",")};
+
+        float[] features = new float[rows.length * encoder.featureCount()];
+        for (int row = 0; row < rows.length; row++) {
+            encoder.encode(rows[row], features, row * encoder.featureCount());
+        }
+
+        for (int row = 0; row < rows.length; row++) {
+            assertThat(encoder.pattern(features, row * encoder.featureCount())).isEqualTo(encoder.pattern(rows[row]));
+        }
+    }
+
+    @Test
+    public void unknownElicitorIsEncodedAsTheDictionarysUnknownElicitor() {
+        FeatureEncoder encoder = FeatureEncoder.forHeader(HEADER);
+        String[] unknown = "1,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,unknown,3".split(",");
+        String[] unkown = "1,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,no,unkown,3".split(",");
+
+        float[] features = new float[2 * encoder.featureCount()];
+        encoder.encode(unknown, features, 0);
+        encoder.encode(unkown, features, encoder.featureCount());
+
+        assertThat(features[encoder.featureCount() - 1]).isEqualTo(features[2 * encoder.featureCount() - 1]);
+        assertThat(encoder.pattern(unknown)).isEqualTo(encoder.pattern(unkown));
+    }
+
+    @Test
+    public void codesOutsideTheDictionariesHaveNoPattern() {
+        FeatureEncoder encoder = FeatureEncoder.forHeader(HEADER);
+        float[] features = new float[encoder.featureCount()];
+        features[0] = 7;
+
+        assertThat(encoder.pattern(features, 0)).isEqualTo(FeatureEncoder.NO_PATTERN);
+    }
+}
@@ -0,0 +1,94 @@
+package net.nora.register;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.TinyIntVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.dictionary.Dictionary;
+import org.apache.arrow.vector.dictionary.DictionaryProvider;
+import org.apache.arrow.vector.ipc.ArrowFileWriter;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.DictionaryEncoding;
+import org.apache.arrow.vector.types.pojo.FieldType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RegisterArrowFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writtenRowsAreReadInChunks() throws IOException {
+        for (String extension : new String[]{RegisterArrowFile.FILE_EXTENSION, RegisterArrowFile.STREAM_EXTENSION}) {
+            File file = folder.newFile("register" + extension);
+            try (RowWriter writer = RowWriter.open(file)) {
+                writer.writeNext(new String[]{"b_case_id", "skin", "VAS_MK"});
+                writer.writeNext(new String[]{"1", "yes", "5"});
+                writer.writeNext(new String[]{"2", "no", null});
+                writer.writeNext(new String[]{"3", "", "8"});
+            }
+
+            List<RegisterCsvData> chunks = new ArrayList<>();
+            new RegisterCsvReader().read(file.getPath(), 2, chunks::add);
+
+            assertThat(new RegisterCsvReader().readHeader(file.getPath())).containsExactly("b_case_id", "skin", "VAS_MK");
+            assertThat(chunks).hasSize(2);
+            assertThat(chunks.get(0).getCsvData()).containsExactly(new String[]{"1", "yes", "5"}, new String[]{"2", "no", ""});
+            assertThat(chunks.get(1).getCsvData()).containsExactly(new String[][]{{"3", "", "8"}});
+        }
+    }
+
+    @Test
+    public void readsDictionaryEncodedAndTypedColumns() throws IOException {
+        File file = folder.newFile("export" + RegisterArrowFile.FILE_EXTENSION);
+        try (BufferAllocator allocator = new RootAllocator();
+             VarCharVector answers = new VarCharVector("answers", allocator)) {
+            answers.allocateNew();
+            answers.setSafe(0, "no".getBytes(StandardCharsets.UTF_8));
+            answers.setSafe(1, "yes".getBytes(StandardCharsets.UTF_8));
+            answers.setValueCount(2);
+            DictionaryEncoding encoding = new DictionaryEncoding(1L, false, new ArrowType.Int(8, true));
+            DictionaryProvider provider = new DictionaryProvider.MapDictionaryProvider(new Dictionary(answers, encoding));
+
+            TinyIntVector skin = new TinyIntVector("skin", new FieldType(true, new ArrowType.Int(8, true), encoding), allocator);
+            skin.allocateNew(3);
+            skin.set(0, 1);
+            skin.set(1, 0);
+            skin.setNull(2);
+            skin.setValueCount(3);
+            IntVector vas = new IntVector("VAS_MK", allocator);
+            vas.allocateNew(3);
+            vas.set(0, 5);
+            vas.setNull(1);
+            vas.set(2, 8);
+            vas.setValueCount(3);
+
+            try (VectorSchemaRoot root = VectorSchemaRoot.of(skin, vas);
+                 FileOutputStream output = new FileOutputStream(file);
+                 ArrowFileWriter writer = new ArrowFileWriter(root, provider, output.getChannel())) {
+                root.setRowCount(3);
+                writer.start();
+                writer.writeBatch();
+                writer.end();
+            }
+        }
+
+        RegisterCsvData data = RegisterArrowFile.read(file.getPath());
+
+        assertThat(data.getHeader()).containsExactly("skin", "VAS_MK");
+        assertThat(data.getCsvData()).containsExactly(new String[]{"yes", "5"}, new String[]{"no", ""}, new String[]{"", "8"});
+    }
+}
@@ -0,0 +1,70 @@
+package net.nora.register;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RegisterCsvReaderTest {
+
+    private static final String HEADER = "b_case_id,skin,q_111_angioedema,pharynx_larynx,abdomin,q_112_nausea,"
+            + "q_112_vomiting,q_112_diarrhoea,q_112_incontinence,q_113_dyspnea,q_113_chest_tightness_v5,q_113_cough_v5,"
+            + "q_113_wheezing_expiratory_distre,q_113_stridor_inspiratory,q_113_respiratory_arrest,"
+            + "q_114_hypotension_collapse_v5,q_114_dizziness,q_114_tachycardia,q_114_palpitations_cardiac_arryt,"
+            + "q_114_chest_pain_angina_v5,q_114_reductions_of_alertness,q_114_loss_of_consciousness,"
+            + "q_114_cardiac_arrest,kind,d_elicitor_gr5,VAS_MK";
+    private static final String ANSWERS = "no,no,no,no,no,no,no,no,no,no,no,no,no,yes,yes,no,no,no,no,no,yes,yes,no";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsRowsWithValuesOutsideTheDictionaries() throws IOException {
+        // pollen is not part of the elicitor dictionary, such rows are filtered after reading
+        File register = writeRegister("1," + ANSWERS + ",insects,",
+                "2," + ANSWERS + ",insects,",
+                "3," + ANSWERS + ",pollen,");
+
+        RegisterCsvData data = new RegisterCsvReader().read(register.getPath());
+
+        assertThat(data.getCsvData()).extracting(row -> row[0]).containsExactly("1", "2", "3");
+    }
+
+    @Test
+    public void countsRowsWithoutPatternAsDistinctRows() {
+        String[] header = HEADER.split(",");
+        SymptomPatternIndex patternIndex = new SymptomPatternIndex(header);
+        String[][] rows = {
+                ("1," + ANSWERS + ",insects,5").split(","),
+                ("2," + ANSWERS + ",insects,6").split(","),
+                ("3," + ANSWERS + ",pollen,5").split(","),
+                ("4," + ANSWERS + ",pollen,5").split(",")};
+
+        int[] firstRows = new int[rows.length];
+        for (int row = 0; row < rows.length; row++) {
+            String[] line = rows[row];
+            firstRows[row] = patternIndex.add(patternIndex.pattern(line),
+                    SymptomPatternIndex.vasValue(line[line.length - 1]), row);
+        }
+
+        assertThat(firstRows).containsExactly(0, 0, 2, 3);
+        assertThat(patternIndex.size()).isEqualTo(1);
+        assertThat(patternIndex.duplicates()).isEqualTo(1);
+        assertThat(patternIndex.rowsWithoutPattern()).isEqualTo(2);
+    }
+
+    private File writeRegister(String... rows) throws IOException {
+        File file = folder.newFile("register.csv");
+        String[] lines = Arrays.copyOf(new String[]{HEADER}, rows.length + 1);
+        System.arraycopy(rows, 0, lines, 1, rows.length);
+        Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+        return file;
+    }
+}